@@ -19,6 +19,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import org.bukkit.Color;
 import org.bukkit.Location;
 import org.bukkit.enchantments.Enchantment;
@@ -173,18 +174,63 @@ public class BinaryIO {
 	return instance;
     }
 
+    /**
+     * Marks classes for which no write adapter could be found, so that
+     * misses are memoized as well.
+     */
+    private static final BinaryAdapter<?> NO_ADAPTER = new BinaryAdapter<Object>() {
+
+	@Override
+	public Object read(DeserializationContext context) throws IOException {
+	    throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void write(Object obj, SerializationContext context) throws IOException {
+	    throw new UnsupportedOperationException();
+	}
+    };
+
     private final Map<Class<?>, BinaryAdapter<?>> adapters;
 
+    /**
+     * Enum adapters, created once per enum class.
+     */
+    private final ClassValue<BinaryAdapter<?>> enumAdapters = new ClassValue<BinaryAdapter<?>>() {
+
+	@Override
+	protected BinaryAdapter<?> computeValue(Class<?> type) {
+	    return new EnumAdapter<>((Class<? extends Enum>) type);
+	}
+    };
+
+    /**
+     * Write adapters resolved per concrete class. Replaced by a fresh cache
+     * whenever the registry changes.
+     */
+    private volatile ClassValue<BinaryAdapter<?>> writeAdapters;
+
     private BinaryIO() {
-	this.adapters = new HashMap<>();
+	this.adapters = new ConcurrentHashMap<>();
+	this.writeAdapters = newWriteAdapterCache();
+    }
+
+    private ClassValue<BinaryAdapter<?>> newWriteAdapterCache() {
+	return new ClassValue<BinaryAdapter<?>>() {
 
+	    @Override
+	    protected BinaryAdapter<?> computeValue(Class<?> type) {
+		BinaryAdapter<?> adapter = resolveWriteAdapter(type);
+		return (adapter == null) ? NO_ADAPTER : adapter;
+	    }
+	};
     }
 
     public <T> BinaryAdapter<T> getReadAdapter(Class<T> clazz) {
 	checkNotNull(clazz, "Clazz cannot be null.");
 
 	if (clazz.isEnum()) {
-	    return (BinaryAdapter<T>) new EnumAdapter<>((Class<? extends Enum>) clazz);
+	    return (BinaryAdapter<T>) enumAdapters.get(clazz);
 	}
 
 	BinaryAdapter<?> adapter = defaultAdapters.get(clazz);
@@ -197,8 +243,13 @@ public class BinaryIO {
     public <T> BinaryAdapter<? super T> getWriteAdapter(Class<T> clazz) {
 	checkNotNull(clazz, "Class cannot be null");
 
+	BinaryAdapter<?> adapter = writeAdapters.get(clazz);
+	return (adapter == NO_ADAPTER) ? null : (BinaryAdapter<? super T>) adapter;
+    }
+
+    private <T> BinaryAdapter<? super T> resolveWriteAdapter(Class<T> clazz) {
 	if (clazz.isEnum()) {
-	    return (BinaryAdapter<T>) new EnumAdapter<>((Class<? extends Enum>) clazz);
+	    return (BinaryAdapter<T>) enumAdapters.get(clazz);
 	}
 
 	BinaryAdapter<? super T> adapter = getWriteAdapter(clazz, defaultAdapters);
@@ -264,6 +315,7 @@ public class BinaryIO {
 	Preconditions.checkNotNull(adapter, "Adapter cannot be null");
 
 	adapters.put(c, adapter);
+	writeAdapters = newWriteAdapterCache();
 
 	return this;
     }
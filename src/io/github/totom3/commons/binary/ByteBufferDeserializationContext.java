@@ -0,0 +1,198 @@
+package io.github.totom3.commons.binary;
+
+import com.google.common.base.Preconditions;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@code DeserializationContext} reading straight from a {@code ByteBuffer},
+ * typically a {@code MappedByteBuffer} of a file. Primitives are decoded from
+ * the buffer without going through a stream, and strings are decoded without
+ * allocating an intermediate array per string.
+ * <p>
+ * The stream returned by {@link #in()} reads from the same buffer, so adapters
+ * using it directly stay in sync with this context.
+ *
+ * @author Totom3
+ */
+public class ByteBufferDeserializationContext extends DeserializationContext {
+
+    private final ByteBuffer buffer;
+    private byte[] scratch;
+
+    public ByteBufferDeserializationContext(ByteBuffer buffer) {
+	super(new DataInputStream(new ByteBufferInputStream(Preconditions.checkNotNull(buffer))));
+	this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @return the underlying buffer. Its position is the position of the next
+     *         read.
+     */
+    public ByteBuffer buffer() {
+	return buffer;
+    }
+
+    @Override
+    public String readString() throws IOException {
+	int length = readInt();
+	if (length == -1) {
+	    return null;
+	}
+
+	if (length == 0) {
+	    return "";
+	}
+
+	if (length < 0 || length > buffer.remaining()) {
+	    throw new EOFException("Cannot read string of length " + length + ": only " + buffer.remaining() + " bytes left");
+	}
+
+	int position = buffer.position();
+	String str;
+	if (buffer.hasArray()) {
+	    str = new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+	} else {
+	    if (scratch == null || scratch.length < length) {
+		scratch = new byte[Math.max(length, 64)];
+	    }
+	    buffer.get(scratch, 0, length);
+	    str = new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	buffer.position(position + length);
+	return str;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+	byte b = readByte();
+	if (b == 1) {
+	    return true;
+	} else if (b == 0) {
+	    return false;
+	} else {
+	    throw new DeserializingException("Expected 1 or 0 for boolean; got instead " + b);
+	}
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+	try {
+	    return buffer.get();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+	return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+	try {
+	    return buffer.getShort();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+	return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+	try {
+	    return buffer.getChar();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    @Override
+    public int readInt() throws IOException {
+	try {
+	    return buffer.getInt();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    @Override
+    public long readLong() throws IOException {
+	try {
+	    return buffer.getLong();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+	try {
+	    return buffer.getFloat();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+	try {
+	    return buffer.getDouble();
+	} catch (BufferUnderflowException ex) {
+	    throw new EOFException();
+	}
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (len == 0) {
+		return 0;
+	    }
+
+	    if (!buffer.hasRemaining()) {
+		return -1;
+	    }
+
+	    len = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, len);
+	    return len;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+	    int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+	    buffer.position(buffer.position() + skipped);
+	    return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+	    return buffer.remaining();
+	}
+    }
+}
@@ -12,7 +12,11 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import io.github.totom3.commons.chat.ChatMessageSender.ChatMessageType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -25,13 +29,13 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import net.amoebaman.amoebautils.nms.ReflectionUtil;
 import net.minecraft.server.v1_8_R3.ChatClickable;
 import net.minecraft.server.v1_8_R3.ChatComponentText;
 import net.minecraft.server.v1_8_R3.ChatHoverable;
 import net.minecraft.server.v1_8_R3.ChatModifier;
 import net.minecraft.server.v1_8_R3.EnumChatFormat;
 import net.minecraft.server.v1_8_R3.IChatBaseComponent;
+import net.minecraft.server.v1_8_R3.PacketPlayOutChat;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
@@ -64,12 +68,30 @@ public class ChatComponent implements Cloneable {
 	protected void setFlag(byte modif, Boolean value) {
 	}
 
+	@Override
+	void invalidate() {
+	}
+
 	@Override
 	public ChatComponent clone() {
 	    throw new UnsupportedOperationException();
 	}
     };
 
+    /**
+     * Getters of the private fields of {@code ChatModifier}, resolved once.
+     * Each is {@code null} if the field could not be found.
+     */
+    private static final MethodHandle COLOR_GETTER = modifierGetter("b", EnumChatFormat.class, 0);
+    private static final MethodHandle BOLD_GETTER = modifierGetter("c", Boolean.class, 0);
+    private static final MethodHandle ITALIC_GETTER = modifierGetter("d", Boolean.class, 1);
+    private static final MethodHandle UNDERLINED_GETTER = modifierGetter("e", Boolean.class, 2);
+    private static final MethodHandle STRIKE_THROUGH_GETTER = modifierGetter("f", Boolean.class, 3);
+    private static final MethodHandle OBFUSCATED_GETTER = modifierGetter("g", Boolean.class, 4);
+    private static final MethodHandle CLICK_EVENT_GETTER = modifierGetter("h", ChatClickable.class, 0);
+    private static final MethodHandle HOVER_EVENT_GETTER = modifierGetter("i", ChatHoverable.class, 0);
+    private static final MethodHandle INSERTION_GETTER = modifierGetter("j", String.class, 0);
+
     private static Pattern COLOR_PATTERN = Pattern.compile("(" + ChatColor.COLOR_CHAR + "[0-9a-fk-or]" + ")");
 
     private static ChatComponent maskNullParent(ChatComponent parent) {
@@ -101,24 +123,24 @@ public class ChatComponent implements Cloneable {
 
 	ChatComponent comp = new ChatComponent()
 		.setText(nmsComp.getText())
-		.setBold((Boolean) getModifier(modif, "c"))
-		.setItalic((Boolean) getModifier(modif, "d"))
-		.setUnderlined((Boolean) getModifier(modif, "e"))
-		.setStrikeThrough((Boolean) getModifier(modif, "f"))
-		.setObfuscated((Boolean) getModifier(modif, "g"))
-		.setInsertion((String) getModifier(modif, "j"));
-
-	Object field = getModifier(modif, "h");
+		.setBold((Boolean) getModifier(modif, BOLD_GETTER))
+		.setItalic((Boolean) getModifier(modif, ITALIC_GETTER))
+		.setUnderlined((Boolean) getModifier(modif, UNDERLINED_GETTER))
+		.setStrikeThrough((Boolean) getModifier(modif, STRIKE_THROUGH_GETTER))
+		.setObfuscated((Boolean) getModifier(modif, OBFUSCATED_GETTER))
+		.setInsertion((String) getModifier(modif, INSERTION_GETTER));
+
+	Object field = getModifier(modif, CLICK_EVENT_GETTER);
 	if (field != null) {
 	    comp.setClickEvent(ChatClickEvent.fromNMS((ChatClickable) field));
 	}
 
-	field = getModifier(modif, "i");
+	field = getModifier(modif, HOVER_EVENT_GETTER);
 	if (field != null) {
 	    comp.setHoverEvent(ChatHoverEvent.fromNMS((ChatHoverable) field));
 	}
 
-	field = getModifier(modif, "b");
+	field = getModifier(modif, COLOR_GETTER);
 	if (field != null) {
 	    comp.setColor(ChatColor.valueOf(((Enum) field).name()));
 	}
@@ -212,15 +234,57 @@ public class ChatComponent implements Cloneable {
 	}
     }
 
-    private static Object getModifier(ChatModifier modif, String fieldName) {
+    /**
+     * Resolves a getter for a field of {@code ChatModifier}. The field is
+     * looked up by its obfuscated name first. If the name does not match (for
+     * instance after a Minecraft update), it falls back to the
+     * {@code ordinal}-th instance field of the expected type, in declaration
+     * order.
+     */
+    private static MethodHandle modifierGetter(String fieldName, Class<?> type, int ordinal) {
+	Field field = null;
 	try {
-	    Field field = ReflectionUtil.getField(modif.getClass(), fieldName);
-	    if (field == null) {
-		return null;
+	    field = ChatModifier.class.getDeclaredField(fieldName);
+	    if (field.getType() != type || Modifier.isStatic(field.getModifiers())) {
+		field = null;
+	    }
+	} catch (NoSuchFieldException ex) {
+	    // fall back on lookup by type
+	}
+
+	if (field == null) {
+	    int index = 0;
+	    for (Field f : ChatModifier.class.getDeclaredFields()) {
+		if (f.getType() == type && !Modifier.isStatic(f.getModifiers()) && index++ == ordinal) {
+		    field = f;
+		    break;
+		}
 	    }
-	    return field.get(modif);
-	} catch (IllegalArgumentException | IllegalAccessException ex) {
-	    Logger.getLogger(ChatComponent.class.getName()).log(Level.SEVERE, "Could not get field " + fieldName + " from class " + modif.getClass() + ": ", ex);
+	}
+
+	if (field == null) {
+	    Logger.getLogger(ChatComponent.class.getName()).log(Level.SEVERE, "Could not find field {0} of type {1} in {2}", new Object[]{fieldName, type, ChatModifier.class});
+	    return null;
+	}
+
+	try {
+	    field.setAccessible(true);
+	    return MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(Object.class, ChatModifier.class));
+	} catch (IllegalAccessException | SecurityException ex) {
+	    Logger.getLogger(ChatComponent.class.getName()).log(Level.SEVERE, "Could not access field " + field.getName() + " from class " + ChatModifier.class + ": ", ex);
+	    return null;
+	}
+    }
+
+    private static Object getModifier(ChatModifier modif, MethodHandle getter) {
+	if (getter == null) {
+	    return null;
+	}
+
+	try {
+	    return (Object) getter.invokeExact(modif);
+	} catch (Throwable ex) {
+	    Logger.getLogger(ChatComponent.class.getName()).log(Level.SEVERE, "Could not get field from class " + modif.getClass() + ": ", ex);
 	    return null;
 	}
     }
@@ -235,6 +299,12 @@ public class ChatComponent implements Cloneable {
     private ChatHoverEvent hoverEvent;
     private Childs childs;
 
+    /**
+     * The chat packet built from this component, or {@code null} if it was
+     * not built yet or the component was modified since.
+     */
+    private PacketPlayOutChat packet;
+
     public ChatComponent() {
 	this.flags = new Flags();
 	this.childs = new Childs();
@@ -280,6 +350,35 @@ public class ChatComponent implements Cloneable {
 	return nmsComp;
     }
 
+    /**
+     * Returns the chat packet for this component, building it if needed. Only
+     * components without a parent cache their packet, until they or one of
+     * their descendants is modified through its setters or its list of
+     * children. Events modified in place after being set are not tracked.
+     *
+     * @return the chat packet for this component.
+     */
+    PacketPlayOutChat toPacket() {
+	// Every change reaches the root through invalidate(), but a change to
+	// a parent does not reach its children
+	if (parent != SUPER_PARENT) {
+	    return new PacketPlayOutChat(toNMS());
+	}
+
+	if (packet == null) {
+	    packet = new PacketPlayOutChat(toNMS());
+	}
+	return packet;
+    }
+
+    /**
+     * Drops the cached packet of this component and of its parents.
+     */
+    void invalidate() {
+	packet = null;
+	parent.invalidate();
+    }
+
     // --------------------[ TO/FROM PLAIN TEXT ]--------------------
     public String toPlainText() {
 	StringBuilder builder = new StringBuilder(160);
@@ -433,37 +532,46 @@ public class ChatComponent implements Cloneable {
 
     public ChatComponent setText(String text) {
 	this.text = text;
+	invalidate();
 	return this;
     }
 
     public ChatComponent setInsertion(String insertion) {
 	this.insertion = insertion;
+	invalidate();
 	return this;
     }
 
     public ChatComponent setClickEvent(ChatClickEvent event) {
 	this.clickEvent = event;
+	invalidate();
 	return this;
     }
 
     public ChatComponent setHoverEvent(ChatHoverEvent event) {
 	this.hoverEvent = event;
+	invalidate();
 	return this;
     }
 
     public ChatComponent setParent(ChatComponent parent) {
+	// The previous parent may have cached a packet holding this component
+	this.parent.invalidate();
 	this.parent = maskNullParent(parent);
+	invalidate();
 	return this;
     }
 
     public ChatComponent setColor(ChatColor color) {
 	this.color = color;
+	invalidate();
 	return this;
     }
 
     public ChatComponent setChilds(List<ChatComponent> childs) {
 	this.childs = new Childs();
 	this.childs.addAll(childs);
+	invalidate();
 	return this;
     }
 
@@ -521,6 +629,7 @@ public class ChatComponent implements Cloneable {
     public ChatComponent negateAllFormats() {
 	flags.definedFlags = BOLD | ITALIC | UNDERLINED | STRIKE_THROUGH | OBFUSCATED;
 	flags.actualFlags = 0;
+	invalidate();
 	return this;
     }
 
@@ -535,6 +644,7 @@ public class ChatComponent implements Cloneable {
     }
 
     protected void setFlag(byte modif, Boolean value) {
+	invalidate();
 	if (value == null) {
 	    // Remove bit
 	    flags.definedFlags &= ~modif;
@@ -852,6 +962,7 @@ public class ChatComponent implements Cloneable {
 	@Override
 	public boolean add(ChatComponent e) {
 	    checkAndSetParent(e);
+	    invalidate();
 	    return actualList.add(e);
 	}
 
@@ -861,11 +972,13 @@ public class ChatComponent implements Cloneable {
 		return false;
 	    }
 
+	    invalidate();
 	    return actualList.remove(o);
 	}
 
 	@Override
 	public void clear() {
+	    invalidate();
 	    actualList.clear();
 	}
 
@@ -877,24 +990,22 @@ public class ChatComponent implements Cloneable {
 	@Override
 	public ChatComponent set(int index, ChatComponent comp) {
 	    checkAndSetParent(comp);
+	    invalidate();
 	    return actualList.set(index, comp);
 	}
 
 	@Override
 	public void add(int index, ChatComponent comp) {
 	    checkAndSetParent(comp);
+	    invalidate();
 	    actualList.add(index, comp);
 	}
 
 	@Override
 	public ChatComponent remove(int index) {
+	    invalidate();
 	    return actualList.remove(index);
 	}
 
-	@Override
-	public List<ChatComponent> subList(int fromIndex, int toIndex) {
-	    return actualList.subList(fromIndex, toIndex);
-	}
-
     }
 }
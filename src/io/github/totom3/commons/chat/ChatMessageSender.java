@@ -1,6 +1,7 @@
 package io.github.totom3.commons.chat;
 
 import com.google.common.base.Preconditions;
+import java.util.Collection;
 import net.minecraft.server.v1_8_R3.PacketPlayOutChat;
 import org.bukkit.command.CommandSender;
 import org.bukkit.craftbukkit.v1_8_R3.entity.CraftPlayer;
@@ -24,10 +25,30 @@ public final class ChatMessageSender {
 	    comp = new ChatComponent();
 	}
 
-	PacketPlayOutChat packet = new PacketPlayOutChat(comp.toNMS());
+	PacketPlayOutChat packet = comp.toPacket();
 	((CraftPlayer) player).getHandle().playerConnection.sendPacket(packet);
     }
 
+    /**
+     * Sends a component to several players. The component is converted and
+     * its packet built only once; the same packet is then written to every
+     * player's connection.
+     *
+     * @param comp    the component to send.
+     * @param players the players to send it to.
+     */
+    public static void broadcast(ChatComponent comp, Collection<? extends Player> players) {
+	Preconditions.checkNotNull(players);
+	if (comp == null) {
+	    comp = new ChatComponent();
+	}
+
+	PacketPlayOutChat packet = comp.toPacket();
+	for (Player player : players) {
+	    ((CraftPlayer) player).getHandle().playerConnection.sendPacket(packet);
+	}
+    }
+
     public static void send(ChatComponent comp, CommandSender sender) {
 	if (sender instanceof Player) {
 	    send(comp, (Player) sender);
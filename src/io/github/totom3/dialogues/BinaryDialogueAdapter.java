@@ -1,10 +1,15 @@
 package io.github.totom3.dialogues;
 
+import com.google.common.hash.HashCode;
 import io.github.totom3.commons.binary.BinaryAdapter;
 import io.github.totom3.commons.binary.DeserializationContext;
 import io.github.totom3.commons.binary.DeserializingException;
 import io.github.totom3.commons.binary.SerializationContext;
+import io.github.totom3.commons.binary.ByteBufferDeserializationContext;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -12,23 +17,134 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 /**
+ * Reads and writes {@code .dlg} files. The current layout starts with
+ * {@link #MAGIC}, the format version and the {@link DialogueMetadata metadata}
+ * of the source, followed by the first prompt ID, the
+ * prefixes, and an index of {@code (prompt ID, offset)} pairs sorted by ID.
+ * The prompts themselves come last, in the same order as the index, so that a
+ * single prompt can be decoded without reading the others.
+ * <p>
+ * Files written before the index was introduced start directly with the
+ * first prompt ID, which is never negative, and are still readable.
  *
  * @author Totom3
  */
 public class BinaryDialogueAdapter implements BinaryAdapter<Dialogue> {
 
+    /**
+     * First int of indexed {@code .dlg} files. Negative, so that it can never
+     * be mistaken for the first prompt ID of a legacy file.
+     */
+    static final int MAGIC = 0xD1A1060E;
+
+    static final int FORMAT_VERSION = 4;
+
+    /**
+     * Metadata of the source of the dialogue. Read from the context when
+     * writing, if present; set in the context when reading.
+     */
+    static final String METADATA_KEY = "metadata";
+
+    /**
+     * Minimum amount of prompts for a memory-mapped dialogue to be decoded
+     * lazily. Set by the loader; if absent, every prompt is decoded eagerly.
+     */
+    static final String LAZY_THRESHOLD_KEY = "lazyThreshold";
+
+    /**
+     * Maximum amount of decoded prompts kept by a lazily decoded dialogue.
+     */
+    static final String PROMPT_CACHE_SIZE_KEY = "promptCacheSize";
+
+    private static final int DEFAULT_PROMPT_CACHE_SIZE = 256;
+
     private static final String CORRUPTED_MSG = " (file is likely corrupted, try re-compiling)";
 
     @Override
     public Dialogue read(DeserializationContext context) throws IOException {
 	String name = context.getData("name", String.class);
 
+	int header = context.readInt();
+	if (header != MAGIC) {
+	    return readLegacy(name, header, context);
+	}
+
+	int version = context.readInt();
+	if (version < 1 || version > FORMAT_VERSION) {
+	    throw new DeserializingException("unsupported format version " + version + " (try re-compiling)");
+	}
+
+	// Version 1 had no metadata
+	DialogueMetadata metadata = null;
+	if (version >= 2) {
+	    metadata = readMetadata(context, version);
+	    if (metadata != null) {
+		context.setData(METADATA_KEY, metadata);
+	    }
+	}
+	HashCode sourceHash = (metadata == null) ? null : metadata.sourceHash();
+
 	// Read first prompt ID
-	int firstPrompt = context.readInt();
-	if (firstPrompt < 0) {
-	    throw new DeserializingException("read invalid first prompt " + firstPrompt + CORRUPTED_MSG);
+	int firstPrompt = readFirstPrompt(context.readInt());
+
+	// Read prefixes
+	Map<Character, String> prefixes = context.readMap(Character.class, String.class);
+
+	// Read index
+	int size = context.readInt();
+	if (size < 0) {
+	    throw new DeserializingException("read invalid prompt count " + size + CORRUPTED_MSG);
+	}
+	int[] ids = new int[size];
+	int[] offsets = new int[size];
+	for (int i = 0; i < size; ++i) {
+	    ids[i] = context.readInt();
+	    offsets[i] = context.readInt();
+
+	    // Prompts of indexed dialogues are looked up by binary search
+	    if (i > 0 && ids[i] <= ids[i - 1]) {
+		throw new DeserializingException("index is not sorted at prompt " + ids[i] + CORRUPTED_MSG);
+	    }
+	}
+
+	int bodyLength = context.readInt();
+	if (bodyLength < 0) {
+	    throw new DeserializingException("read invalid body length " + bodyLength + CORRUPTED_MSG);
 	}
 
+	// Large mapped dialogues keep their body and decode prompts on demand
+	Object threshold = context.getData(LAZY_THRESHOLD_KEY);
+	if (context instanceof ByteBufferDeserializationContext && threshold != null && size >= (Integer) threshold) {
+	    ByteBuffer buffer = ((ByteBufferDeserializationContext) context).buffer();
+	    if (bodyLength > buffer.remaining()) {
+		throw new DeserializingException("body length " + bodyLength + " exceeds file size" + CORRUPTED_MSG);
+	    }
+
+	    ByteBuffer body = buffer.slice();
+	    body.limit(bodyLength);
+	    buffer.position(buffer.position() + bodyLength);
+
+	    Object cacheSize = context.getData(PROMPT_CACHE_SIZE_KEY);
+	    Dialogue dialogue = new IndexedDialogue(name, firstPrompt, prefixes, ids, offsets, body,
+		    (cacheSize == null) ? DEFAULT_PROMPT_CACHE_SIZE : (Integer) cacheSize);
+	    dialogue.setSourceHash(sourceHash);
+	    return dialogue;
+	}
+
+	// Prompts are stored in index order
+	Map<Integer, DialoguePrompt> prompts = new HashMap<>(size);
+	for (int id : ids) {
+	    prompts.put(id, readPrompt(id, context));
+	}
+
+	Dialogue dialogue = link(new Dialogue(name, firstPrompt, prompts, prefixes), prompts);
+	dialogue.setSourceHash(sourceHash);
+	return dialogue;
+    }
+
+    private Dialogue readLegacy(String name, int firstPrompt, DeserializationContext context) throws IOException {
+	readFirstPrompt(firstPrompt);
+
 	// Read prefixes
 	Map<Character, String> prefixes = context.readMap(Character.class, String.class);
 
@@ -41,18 +157,89 @@ public class BinaryDialogueAdapter implements BinaryAdapter<Dialogue> {
 
 	    prompts.put(id, readPrompt(id, context));
 	}
-	
-	
-	// Last step: creating Dialogue and linking prompts to it
-	Dialogue dialogue = new Dialogue(name, firstPrompt, prompts, prefixes);
+
+	return link(new Dialogue(name, firstPrompt, prompts, prefixes), prompts);
+    }
+
+    /**
+     * Reads the metadata from the header of a {@code .dlg} file, leaving the
+     * rest of the file untouched.
+     *
+     * @return the metadata, or {@code null} if the file has none.
+     */
+    static DialogueMetadata readHeader(DeserializationContext context) throws IOException {
+	if (context.readInt() != MAGIC) {
+	    return null;
+	}
+
+	int version = context.readInt();
+	return (version >= 2 && version <= FORMAT_VERSION) ? readMetadata(context, version) : null;
+    }
+
+    private static DialogueMetadata readMetadata(DeserializationContext context, int version) throws IOException {
+	if (!context.readBoolean()) {
+	    return null;
+	}
+
+	int compilerVersion = context.readInt();
+	byte[] hash = new byte[context.readUnsignedByte()];
+	context.in().readFully(hash);
+	long sourceLength = context.readLong();
+	long sourceModified = context.readLong();
+
+	if (hash.length == 0) {
+	    throw new DeserializingException("read empty source hash" + CORRUPTED_MSG);
+	}
+
+	// Version 2 did not list the outputs
+	List<String> outputs = new ArrayList<>();
+	if (version >= 3) {
+	    int size = context.readInt();
+	    for (int i = 0; i < size; ++i) {
+		outputs.add(context.readString());
+	    }
+	}
+
+	// Version 3 did not record the steps per tick
+	int maxStepsPerTick = (version >= 4) ? context.readInt() : DialogueMetadata.UNKNOWN_STEPS;
+	return new DialogueMetadata(compilerVersion, HashCode.fromBytes(hash), sourceLength, sourceModified, outputs, maxStepsPerTick);
+    }
+
+    private static void writeMetadata(DialogueMetadata metadata, SerializationContext context) throws IOException {
+	if (!context.writeAndReturnBool(metadata != null)) {
+	    return;
+	}
+
+	context.writeInt(metadata.compilerVersion());
+	byte[] hash = metadata.sourceHash().asBytes();
+	context.writeByte(hash.length);
+	context.out().write(hash);
+	context.writeLong(metadata.sourceLength());
+	context.writeLong(metadata.sourceModified());
+	context.writeInt(metadata.outputs().size());
+	for (String output : metadata.outputs()) {
+	    context.writeString(output);
+	}
+	context.writeInt(metadata.maxStepsPerTick());
+    }
+
+    private int readFirstPrompt(int firstPrompt) throws DeserializingException {
+	if (firstPrompt < 0) {
+	    throw new DeserializingException("read invalid first prompt " + firstPrompt + CORRUPTED_MSG);
+	}
+	return firstPrompt;
+    }
+
+    private Dialogue link(Dialogue dialogue, Map<Integer, DialoguePrompt> prompts) {
+	// Last step: linking prompts to the dialogue
 	for (DialoguePrompt prompt : prompts.values()) {
 	    prompt.init(dialogue);
 	}
-	
+
 	return dialogue;
     }
 
-    private DialoguePrompt readPrompt(int promptID, DeserializationContext context) throws IOException {
+    static DialoguePrompt readPrompt(int promptID, DeserializationContext context) throws IOException {
 	// Read message
 	String message = context.readString();
 
@@ -91,29 +278,45 @@ public class BinaryDialogueAdapter implements BinaryAdapter<Dialogue> {
     // --------------------------------=[ Write Methods ]=--------------------------------
     @Override
     public void write(Dialogue dialogue, SerializationContext context) throws IOException {
+	// Write header
+	context.writeInt(MAGIC);
+	context.writeInt(FORMAT_VERSION);
+	writeMetadata((DialogueMetadata) context.getData(METADATA_KEY), context);
+
 	// Write first prompt ID
 	context.writeInt(dialogue.firstPromptID());
 
 	// Write prefixes
 	context.writeMap(dialogue.messagePrefixes());
 
-	// Write prompts
+	// Encode prompts in ID order, recording their offsets
 	Map<Integer, DialoguePrompt> prompts = dialogue.prompts();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(prompts.size() * 64);
+	DataOutputStream body = new DataOutputStream(bytes);
+	SerializationContext bodyContext = new SerializationContext(body);
+
+	int[] offsets = new int[prompts.size()];
+	int i = 0;
+	for (DialoguePrompt prompt : prompts.values()) {
+	    offsets[i++] = body.size();
+	    writePrompt(prompt, bodyContext);
+	}
+	body.flush();
 
+	// Write index
 	context.writeInt(prompts.size());
+	i = 0;
 	for (Entry<Integer, DialoguePrompt> entry : prompts.entrySet()) {
-	    int id = entry.getKey();
-	    DialoguePrompt prompt = entry.getValue();
-
-	    // Write ID
-	    context.writeInt(id);
-
-	    // Write prompt
-	    writePrompt(prompt, context);
+	    context.writeInt(entry.getKey());
+	    context.writeInt(offsets[i++]);
 	}
+
+	// Write prompts
+	context.writeInt(bytes.size());
+	context.out().write(bytes.toByteArray());
     }
 
-    private void writePrompt(DialoguePrompt prompt, SerializationContext context) throws IOException {
+    private static void writePrompt(DialoguePrompt prompt, SerializationContext context) throws IOException {
 	// Write message
 	context.writeString(prompt.message());
 
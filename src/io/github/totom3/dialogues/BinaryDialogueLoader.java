@@ -1,17 +1,31 @@
 package io.github.totom3.dialogues;
 
 import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.github.totom3.commons.binary.ByteBufferDeserializationContext;
 import io.github.totom3.commons.binary.DeserializationContext;
 import io.github.totom3.commons.binary.SerializationContext;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -19,13 +33,94 @@ import java.io.IOException;
  */
 public class BinaryDialogueLoader extends CacheLoader<String, Dialogue> {
 
+    private static final boolean MAPPING_LOCKS_FILES = File.separatorChar == '\\';
+
+    /**
+     * Whether {@code .dlg} files are memory-mapped and decoded straight from
+     * the mapping, instead of being read through a stream.
+     */
+    private volatile boolean memoryMapped;
+
+    /**
+     * Minimum amount of prompts for a memory-mapped dialogue to have its
+     * prompts decoded on first access instead of all at load time.
+     */
+    private volatile int lazyThreshold = 512;
+
+    /**
+     * Maximum amount of decoded prompts kept by each lazily decoded dialogue.
+     */
+    private volatile int promptCacheSize = 256;
+
+    /**
+     * The pack dialogues are loaded from first, if any.
+     */
+    private volatile DialoguePack pack;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+	    .setNameFormat("Dialogues Writer")
+	    .setDaemon(true)
+	    .build());
+
+    public boolean isMemoryMapped() {
+	return memoryMapped;
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+	this.memoryMapped = memoryMapped;
+    }
+
+    public DialoguePack getPack() {
+	return pack;
+    }
+
+    /**
+     * Sets the pack dialogues are loaded from first. Dialogues missing from
+     * the pack, or whose {@code .dlg} file changed since they were packed,
+     * are loaded from their own {@code .dlg} file.
+     *
+     * @param pack the pack, or {@code null} to only use {@code .dlg} files.
+     */
+    public void setPack(DialoguePack pack) {
+	this.pack = pack;
+    }
+
+    public int getLazyThreshold() {
+	return lazyThreshold;
+    }
+
+    public void setLazyThreshold(int lazyThreshold) {
+	this.lazyThreshold = lazyThreshold;
+    }
+
+    public int getPromptCacheSize() {
+	return promptCacheSize;
+    }
+
+    public void setPromptCacheSize(int promptCacheSize) {
+	if (promptCacheSize < 1) {
+	    throw new IllegalArgumentException("Prompt cache size must be positive; got " + promptCacheSize);
+	}
+	this.promptCacheSize = promptCacheSize;
+    }
+
     @Override
     public Dialogue load(String name) throws Exception {
 	if (name == null) {
 	    throw new NullPointerException("Dialogue name cannot be null");
 	}
 
+	// Names in the pack are exact, so they need no case check. Files
+	// compiled again since packing take precedence over the pack.
 	File file = DialoguesCache.getBinaryFile(name);
+	DialoguePack currentPack = pack;
+	if (currentPack != null && currentPack.isCurrent(name, file)) {
+	    ByteBuffer entry = currentPack.entry(name);
+	    if (entry != null) {
+		return decode(name, entry);
+	    }
+	}
+
 	if (!file.isFile()) {
 	    throw new FileNotFoundException("Missing binary file for dialogue '" + name + "'");
 	}
@@ -44,6 +139,10 @@ public class BinaryDialogueLoader extends CacheLoader<String, Dialogue> {
 	    throw new FileNotFoundException("Missing binary file for dialogue '" + name + "'");
 	}
 
+	if (memoryMapped) {
+	    return loadMapped(name, file);
+	}
+
 	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
 	    DeserializationContext context = new DeserializationContext(in);
 	    context.setData("name", name);
@@ -51,17 +150,159 @@ public class BinaryDialogueLoader extends CacheLoader<String, Dialogue> {
 	}
     }
 
+    private Dialogue loadMapped(String name, File file) throws IOException {
+	return decode(name, map(file.toPath()));
+    }
+
+    private Dialogue decode(String name, ByteBuffer buffer) throws IOException {
+	DeserializationContext context = new ByteBufferDeserializationContext(buffer);
+	context.setData("name", name);
+	context.setData(BinaryDialogueAdapter.LAZY_THRESHOLD_KEY, lazyThreshold);
+	context.setData(BinaryDialogueAdapter.PROMPT_CACHE_SIZE_KEY, promptCacheSize);
+	return context.readObject(Dialogue.class);
+    }
+
+    /**
+     * Reads the metadata from the header of the {@code .dlg} file of a
+     * dialogue, without loading the dialogue.
+     *
+     * @return the metadata, or {@code null} if the file does not exist or has
+     *         no metadata.
+     */
+    public DialogueMetadata readMetadata(String name) throws IOException {
+	File file = DialoguesCache.getBinaryFile(name);
+	if (!file.isFile()) {
+	    return null;
+	}
+
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64))) {
+	    return BinaryDialogueAdapter.readHeader(new DeserializationContext(in));
+	} catch (EOFException ex) {
+	    return null;
+	}
+    }
+
     public void save(Dialogue dialogue) throws IOException {
+	save(dialogue, null);
+    }
+
+    /**
+     * Saves a dialogue, recording the metadata of its source in the header.
+     * The dialogue is written to a temporary file, synced to disk, then
+     * renamed over the previous file, so that the file is never seen half
+     * written, even after a crash.
+     *
+     * @param dialogue the dialogue to save.
+     * @param metadata the metadata of the source, may be {@code null}.
+     */
+    public void save(Dialogue dialogue, DialogueMetadata metadata) throws IOException {
 	String name = dialogue.getName();
 	File file = DialoguesCache.getBinaryFile(name);
-	if (!file.isFile()) {
-	    file.getParentFile().mkdirs();
-	    file.createNewFile();
+	File directory = file.getParentFile();
+	directory.mkdirs();
+
+	Path temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+	try {
+	    try (FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+		    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+		SerializationContext context = new SerializationContext(out);
+		context.setData(BinaryDialogueAdapter.METADATA_KEY, metadata);
+		context.writeObject(dialogue);
+		out.flush();
+		fileOut.getFD().sync();
+	    }
+
+	    replace(temp, file.toPath());
+	} catch (IOException | RuntimeException ex) {
+	    Files.deleteIfExists(temp);
+	    throw ex;
+	}
+    }
+
+    /**
+     * Saves a dialogue on the background writer thread. Saves are ran one at
+     * a time, in the order they were requested.
+     *
+     * @param dialogue the dialogue to save.
+     * @param metadata the metadata of the source, may be {@code null}.
+     *
+     * @return a future completed once the dialogue is on disk, or with the
+     *         cause of the failure.
+     *
+     * @see #save(Dialogue, DialogueMetadata)
+     */
+    public CompletableFuture<Void> saveAsync(Dialogue dialogue, DialogueMetadata metadata) {
+	CompletableFuture<Void> future = new CompletableFuture<>();
+	writer.execute(() -> {
+	    try {
+		save(dialogue, metadata);
+		future.complete(null);
+	    } catch (Throwable t) {
+		future.completeExceptionally(t);
+	    }
+	});
+	return future;
+    }
+
+    /**
+     * Stops accepting saves and waits for the pending ones to finish.
+     */
+    void shutdown() {
+	writer.shutdown();
+	try {
+	    if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+		Main.get().getLogger().warning("Timed out while waiting for dialogues to be saved");
+	    }
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
 	}
+    }
+
+    /**
+     * Maps a whole file in memory, read-only. On Windows, a mapped file cannot
+     * be replaced or deleted until the mapping is garbage collected, which
+     * would make saving or packing fail; the file is read into memory there
+     * instead.
+     *
+     * @param path the file.
+     *
+     * @return a buffer over the contents of the file.
+     *
+     * @throws IOException if the file could not be read, or is larger than
+     *                     2 GB.
+     */
+    static ByteBuffer map(Path path) throws IOException {
+	try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+	    long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException("File " + path + " is larger than 2 GB");
+	    }
+
+	    if (!MAPPING_LOCKS_FILES) {
+		// The mapping stays valid after the channel is closed
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	    }
+
+	    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+	    while (buffer.hasRemaining()) {
+		if (channel.read(buffer) < 0) {
+		    throw new EOFException("File " + path + " was truncated while being read");
+		}
+	    }
+	    buffer.flip();
+	    return buffer;
+	}
+    }
 
-	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
-	    SerializationContext context = new SerializationContext(out);
-	    context.writeObject(dialogue);
+    /**
+     * Moves a file over another one, atomically if the file system allows
+     * it.
+     */
+    static void replace(Path source, Path target) throws IOException {
+	try {
+	    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	} catch (AtomicMoveNotSupportedException ex) {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
 	}
     }
 
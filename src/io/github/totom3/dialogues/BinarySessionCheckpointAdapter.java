@@ -0,0 +1,103 @@
+package io.github.totom3.dialogues;
+
+import com.google.common.hash.HashCode;
+import io.github.totom3.commons.binary.BinaryAdapter;
+import io.github.totom3.commons.binary.DeserializationContext;
+import io.github.totom3.commons.binary.DeserializingException;
+import io.github.totom3.commons.binary.SerializationContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads and writes {@link SessionCheckpoint session checkpoints}, as stored
+ * in the {@link SessionJournal}.
+ *
+ * @author Totom3
+ */
+public class BinarySessionCheckpointAdapter implements BinaryAdapter<SessionCheckpoint> {
+
+    static final int FORMAT_VERSION = 2;
+
+    private static final String CORRUPTED_MSG = " (session journal is likely corrupted)";
+
+    @Override
+    public SessionCheckpoint read(DeserializationContext context) throws IOException {
+	int version = context.readUnsignedByte();
+	if (version < 1 || version > FORMAT_VERSION) {
+	    throw new DeserializingException("unsupported session checkpoint version " + version);
+	}
+
+	UUID sessionID = readUUID(context);
+	String dialogue = context.readString();
+	if (dialogue == null) {
+	    throw new DeserializingException("read null dialogue name" + CORRUPTED_MSG);
+	}
+
+	// Version 1 did not record the source hash
+	HashCode sourceHash = null;
+	if (version >= 2 && context.readBoolean()) {
+	    byte[] hash = new byte[context.readUnsignedByte()];
+	    if (hash.length == 0) {
+		throw new DeserializingException("read empty source hash" + CORRUPTED_MSG);
+	    }
+	    context.in().readFully(hash);
+	    sourceHash = HashCode.fromBytes(hash);
+	}
+
+	int promptID = context.readInt();
+	int action = context.readUnsignedByte();
+	int remainingDelay = context.readInt();
+	boolean timeoutScheduled = context.readBoolean();
+	boolean acceptsInput = context.readBoolean();
+
+	int size = context.readUnsignedShort();
+	List<UUID> participants = new ArrayList<>(size);
+	for (int i = 0; i < size; ++i) {
+	    participants.add(readUUID(context));
+	}
+
+	UUID lastSender = context.readBoolean() ? readUUID(context) : null;
+	long time = context.readLong();
+
+	return new SessionCheckpoint(sessionID, dialogue, sourceHash, promptID, action, remainingDelay,
+		timeoutScheduled, acceptsInput, participants, lastSender, time);
+    }
+
+    @Override
+    public void write(SessionCheckpoint checkpoint, SerializationContext context) throws IOException {
+	context.writeByte(FORMAT_VERSION);
+	writeUUID(checkpoint.sessionID(), context);
+	context.writeString(checkpoint.dialogue());
+	if (context.writeAndReturnBool(checkpoint.sourceHash() != null)) {
+	    byte[] hash = checkpoint.sourceHash().asBytes();
+	    context.writeByte(hash.length);
+	    context.out().write(hash);
+	}
+	context.writeInt(checkpoint.promptID());
+	context.writeByte(checkpoint.action());
+	context.writeInt(checkpoint.remainingDelay());
+	context.writeBoolean(checkpoint.timeoutScheduled());
+	context.writeBoolean(checkpoint.acceptsInput());
+
+	context.writeShort(checkpoint.participants().size());
+	for (UUID participant : checkpoint.participants()) {
+	    writeUUID(participant, context);
+	}
+
+	if (context.writeAndReturnBool(checkpoint.lastSender() != null)) {
+	    writeUUID(checkpoint.lastSender(), context);
+	}
+	context.writeLong(checkpoint.time());
+    }
+
+    static UUID readUUID(DeserializationContext context) throws IOException {
+	return new UUID(context.readLong(), context.readLong());
+    }
+
+    static void writeUUID(UUID uuid, SerializationContext context) throws IOException {
+	context.writeLong(uuid.getMostSignificantBits());
+	context.writeLong(uuid.getLeastSignificantBits());
+    }
+}
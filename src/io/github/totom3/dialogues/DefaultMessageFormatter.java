@@ -8,49 +8,145 @@ import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
 /**
+ * Formats messages from their compiled {@link MessageTemplate templates}.
+ * Subclasses customize formatting by overriding
+ * {@link #applyTemplate(DialogueSession, MessageTemplate, StringBuilder)}.
+ * Subclasses still overriding the deprecated
+ * {@link #applyPrefix(DialogueSession, String)} or
+ * {@link #applyVariablesAndColors(DialogueSession, String)} get messages
+ * formatted through them from their raw text, as before.
  *
  * @author Totom3
  */
 public class DefaultMessageFormatter implements MessageFormatter {
 
+    private static final Pattern VARIABLES_AND_COLORS = Pattern.compile("(%(s|a|r))|([&" + ChatColor.COLOR_CHAR + "]([0-9a-fk-or]))");
+
+    private final boolean legacyHooks = overridesLegacyHooks(getClass());
+
+    private static boolean overridesLegacyHooks(Class<?> type) {
+	for (; type != DefaultMessageFormatter.class; type = type.getSuperclass()) {
+	    try {
+		type.getDeclaredMethod("applyPrefix", DialogueSession.class, String.class);
+		return true;
+	    } catch (NoSuchMethodException ex) {
+		// Not overridden at this level
+	    }
+	    try {
+		type.getDeclaredMethod("applyVariablesAndColors", DialogueSession.class, String.class);
+		return true;
+	    } catch (NoSuchMethodException ex) {
+		// Not overridden at this level
+	    }
+	}
+	return false;
+    }
+
     @Override
     public String formatPromptMessage(DialogueSession session, DialoguePrompt prompt) {
-	String message = prompt.message();
-	if (message == null) {
+	if (legacyHooks) {
+	    String message = prompt.message();
+	    return (message == null) ? null : applyVariablesAndColors(session, applyPrefix(session, message)).toString();
+	}
+
+	MessageTemplate template = prompt.messageTemplate();
+	if (template == null) {
 	    return null;
 	}
 
-	message = applyPrefix(session, message);
-	return applyVariablesAndColors(session, message).toString();
+	return applyTemplate(session, template, null).toString();
     }
 
     @Override
     public String formatChatMessage(DialogueSession session, Player sender, InputChoice choice) {
-	String message = choice.chatMessage();
-	if (message == null) {
+	if (legacyHooks) {
+	    String message = choice.chatMessage();
+	    return (message == null) ? null : applyVariablesAndColors(session, applyPrefix(session, message)).toString();
+	}
+
+	MessageTemplate template = choice.chatTemplate();
+	if (template == null) {
 	    return null;
 	}
 
-	message = applyPrefix(session, message);
-	return applyVariablesAndColors(session, message).toString();
+	return applyTemplate(session, template, null).toString();
     }
 
     @Override
     public String formatDisplayMessage(DialogueSession session, InputChoice choice) {
-	String message = choice.displayMessage();
-	if (message == null) {
+	MessageTemplate template = choice.displayTemplate();
+	if (template == null) {
 	    return null;
 	}
 
-	StringBuilder builder = new StringBuilder();
+	StringBuilder builder = new StringBuilder(template.literalsLength() + 24);
 	builder.append(ChatColor.GOLD).append(" ").append(choice.choiceID()).append(". ").append(ChatColor.YELLOW);
 
-	StringBuffer messageBuffer = applyVariablesAndColors(session, message);
-	builder.append(messageBuffer);
+	if (legacyHooks) {
+	    return builder.append(applyVariablesAndColors(session, choice.displayMessage())).toString();
+	}
+	return applyTemplate(session, template, builder).toString();
+    }
+
+    /**
+     * Fills in the slots of a compiled message.
+     *
+     * @param session  the session the message is formatted for.
+     * @param template the compiled message.
+     * @param builder  the builder to append to, or {@code null} to create one.
+     *
+     * @return the builder the message was appended to.
+     */
+    protected StringBuilder applyTemplate(DialogueSession session, MessageTemplate template, StringBuilder builder) {
+	int slots = template.slots();
+	if (builder == null) {
+	    builder = new StringBuilder(template.literalsLength() + slots * 16);
+	}
+
+	builder.append(template.literal(0));
+	for (int i = 0; i < slots; ++i) {
+	    ChatColor color = template.color(i);
+	    ChatColor format = template.format(i);
+
+	    switch (template.variable(i)) {
+		case MessageTemplate.RANDOM:
+		    builder.append(session.getRandomPlayer().getDisplayName());
+		    appendColorAndFormat(builder, color, format);
+		    break;
+		case MessageTemplate.ALL:
+		    builder.append(formatPlayers(session.getParticipants(), color, format));
+		    break;
+		case MessageTemplate.SENDER:
+		    Player lastSender = session.getLastSender();
+		    builder.append((lastSender != null) ? lastSender.getDisplayName() : "null");
+		    appendColorAndFormat(builder, color, format);
+		    break;
+		default:
+		    throw new AssertionError("unexpected variable " + template.variable(i));
+	    }
+
+	    builder.append(template.literal(i + 1));
+	}
+
+	return builder;
+    }
 
-	return builder.toString();
+    private static void appendColorAndFormat(StringBuilder builder, ChatColor color, ChatColor format) {
+	if (color != null) {
+	    builder.append(color);
+	}
+	if (format != null) {
+	    builder.append(format);
+	}
     }
 
+    /**
+     * @deprecated prefixes are applied when messages are compiled; override
+     *             {@link #applyTemplate(DialogueSession, MessageTemplate, StringBuilder)}
+     *             instead. Only called for subclasses overriding this method
+     *             or {@link #applyVariablesAndColors(DialogueSession, String)}.
+     */
+    @Deprecated
     protected String applyPrefix(DialogueSession session, String message) {
 	char firstChar = message.charAt(0);
 	String prefix = session.getDialogue().getMessagePrefix(firstChar);
@@ -61,11 +157,18 @@ public class DefaultMessageFormatter implements MessageFormatter {
 	return prefix + message.substring(1);
     }
 
+    /**
+     * @deprecated variables and colors are parsed when messages are compiled;
+     *             override
+     *             {@link #applyTemplate(DialogueSession, MessageTemplate, StringBuilder)}
+     *             instead. Only called for subclasses overriding this method
+     *             or {@link #applyPrefix(DialogueSession, String)}.
+     */
+    @Deprecated
     protected StringBuffer applyVariablesAndColors(DialogueSession session, String message) {
 	String playersString = null; // only evaluated if needed
 
-	Pattern pattern = Pattern.compile("(%(s|a|r))|([&" + ChatColor.COLOR_CHAR + "]([0-9a-fk-or]))");
-	Matcher matcher = pattern.matcher(message);
+	Matcher matcher = VARIABLES_AND_COLORS.matcher(message);
 
 	// externally synchronizing on string buffer for performance reasons
 	StringBuffer sb = new StringBuffer(message.length());
@@ -0,0 +1,205 @@
+package io.github.totom3.dialogues;
+
+import io.github.totom3.commons.binary.DeserializingException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads dialogues from comma-separated ({@code .csv}) or tab-separated
+ * ({@code .tsv}) files, using the same column layout as Excel sheets. Files
+ * are read one row at a time, so memory use does not depend on the size of
+ * the file, and there is no limit on the number of rows.
+ * <p>
+ * Fields may be quoted with {@code "}, in which case they may contain
+ * delimiters, line breaks, and doubled quotes standing for a single quote.
+ *
+ * @author Totom3
+ */
+public class DelimitedDialogueLoader {
+
+    public static final String CSV_EXTENSION = ".csv";
+    public static final String TSV_EXTENSION = ".tsv";
+
+    private static final char QUOTE = '"';
+    private static final char BOM = '\uFEFF';
+
+    public Dialogue load(String name) throws NullPointerException, FileNotFoundException, IOException {
+	if (name == null) {
+	    throw new NullPointerException("Dialogue name cannot be null");
+	}
+
+	File file = DialoguesCache.getSourceFile(name, CSV_EXTENSION);
+	char delimiter = ',';
+	if (!file.isFile()) {
+	    file = DialoguesCache.getSourceFile(name, TSV_EXTENSION);
+	    delimiter = '\t';
+	}
+
+	if (!file.isFile()) {
+	    throw new FileNotFoundException("Missing CSV or TSV file for dialogue '" + name + "'");
+	}
+
+	// Enforce case-sensitivity; see ExcelDialogueLoader
+	String extension = (delimiter == ',') ? CSV_EXTENSION : TSV_EXTENSION;
+	String canonicalPath = file.getCanonicalPath();
+	if (!canonicalPath.endsWith(name.replace('.', File.separatorChar).concat(extension))) {
+	    throw new FileNotFoundException("Missing CSV or TSV file for dialogue '" + name + "'");
+	}
+
+	try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+	    return load(name, reader, delimiter);
+	}
+    }
+
+    Dialogue load(String name, Reader reader, char delimiter) throws IOException {
+	DialogueRowParser parser = new DialogueRowParser(name);
+	RowReader rows = new RowReader(reader, delimiter);
+	while (rows.next()) {
+	    parser.parseRow(rows);
+	}
+	return parser.finish();
+    }
+
+    /**
+     * Reads a delimited file one row at a time, exposing the current row as a
+     * {@code SourceRow}. Trailing empty fields are not counted, like trailing
+     * empty cells of an Excel row.
+     */
+    private static final class RowReader implements SourceRow {
+
+	private final Reader reader;
+	private final char delimiter;
+
+	// Buffered here rather than through a BufferedReader, whose read()
+	// is synchronized
+	private final char[] buffer = new char[8192];
+	private int position;
+	private int limit;
+
+	private final List<String> fields = new ArrayList<>(16);
+	private final StringBuilder field = new StringBuilder(128);
+	private int length;
+
+	private int row = -1;
+	private boolean first = true;
+	private boolean eof;
+
+	RowReader(Reader reader, char delimiter) {
+	    this.reader = reader;
+	    this.delimiter = delimiter;
+	}
+
+	/**
+	 * Reads the next row.
+	 *
+	 * @return {@code false} if the end of the file was reached.
+	 */
+	boolean next() throws IOException {
+	    if (eof) {
+		return false;
+	    }
+
+	    ++row;
+	    fields.clear();
+	    field.setLength(0);
+	    length = 0;
+
+	    boolean quoted = false;
+	    boolean any = false;
+	    int c;
+	    while ((c = read()) != -1) {
+		if (first) {
+		    first = false;
+		    if (c == BOM) {
+			continue;
+		    }
+		}
+		any = true;
+
+		if (quoted) {
+		    if (c != QUOTE) {
+			field.append((char) c);
+			continue;
+		    }
+
+		    if (peek() == QUOTE) {
+			field.append(QUOTE);
+			++position;
+		    } else {
+			quoted = false;
+		    }
+		    continue;
+		}
+
+		if (c == QUOTE && field.length() == 0) {
+		    quoted = true;
+		} else if (c == delimiter) {
+		    endField();
+		} else if (c == '\n') {
+		    endField();
+		    return true;
+		} else if (c != '\r') {
+		    field.append((char) c);
+		}
+	    }
+
+	    if (quoted) {
+		throw new DeserializingException("Unterminated quoted field (at row " + row + ")");
+	    }
+
+	    eof = true;
+	    if (!any) {
+		return false;
+	    }
+
+	    endField();
+	    return true;
+	}
+
+	private int read() throws IOException {
+	    int c = peek();
+	    if (c != -1) {
+		++position;
+	    }
+	    return c;
+	}
+
+	private int peek() throws IOException {
+	    if (position == limit) {
+		int read = reader.read(buffer, 0, buffer.length);
+		if (read <= 0) {
+		    return -1;
+		}
+		position = 0;
+		limit = read;
+	    }
+	    return buffer[position];
+	}
+
+	private void endField() {
+	    String contents = field.toString();
+	    fields.add(contents);
+	    field.setLength(0);
+	    if (!contents.isEmpty()) {
+		length = fields.size();
+	    }
+	}
+
+	@Override
+	public int length() {
+	    return length;
+	}
+
+	@Override
+	public String contents(int column) {
+	    return (column >= length) ? "" : fields.get(column);
+	}
+    }
+}
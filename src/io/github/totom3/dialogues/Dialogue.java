@@ -2,6 +2,8 @@ package io.github.totom3.dialogues;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
 import java.util.Collection;
 import java.util.Map;
 import org.bukkit.entity.Player;
@@ -12,20 +14,93 @@ import org.bukkit.entity.Player;
  */
 public class Dialogue {
 
+    static final int DIALOGUE_OVERHEAD = 64;
+    static final int ENTRY_OVERHEAD = 32;
+
     private final String name;
     private final int firstPrompt;
-    private final Map<Integer, DialoguePrompt> prompts;
     private final Map<Character, String> prefixes;
 
+    /**
+     * Maximum number of array slots per prompt, plus {@link #SLACK}, before
+     * prompts are kept in a map instead.
+     */
+    private static final int MAX_SLOTS_PER_PROMPT = 4;
+    private static final int SLACK = 64;
+
+    /**
+     * Prompts indexed by {@code promptID - baseID}. Prompt IDs are row
+     * numbers, so the array usually has few empty slots. {@code null} if the
+     * IDs are too sparse, in which case {@link #sparsePrompts} is used.
+     */
+    private final DialoguePrompt[] prompts;
+    private final Map<Integer, DialoguePrompt> sparsePrompts;
+    private final int baseID;
+    private final int promptCount;
+
+    /**
+     * The result of {@link #estimatedSize()}, or {@code -1} until computed.
+     * Racy, but recomputing it gives the same value.
+     */
+    private int estimatedSize = -1;
+
+    /**
+     * Hash of the source this dialogue was compiled from, or {@code null} if
+     * unknown. Set before the dialogue is published.
+     */
+    private HashCode sourceHash;
+
     Dialogue(String name, int firstPrompt, Map<Integer, DialoguePrompt> prompts, Map<Character, String> prefixes) {
 	this.name = checkNotNull(name);
 	this.firstPrompt = firstPrompt;
 	this.prefixes = ImmutableMap.copyOf(prefixes);
-	this.prompts = ImmutableMap.copyOf(prompts);
+
+	int minID = Integer.MAX_VALUE;
+	int maxID = Integer.MIN_VALUE;
+	for (int promptID : prompts.keySet()) {
+	    minID = Math.min(minID, promptID);
+	    maxID = Math.max(maxID, promptID);
+	}
 
 	if (prompts.get(firstPrompt) == null) {
 	    throw new IllegalArgumentException("First prompt " + firstPrompt + " does not exist in prompts: " + prompts);
 	}
+
+	this.baseID = minID;
+	this.promptCount = prompts.size();
+
+	// Bounding the array by the number of prompts keeps a few far apart
+	// (or corrupted) IDs from allocating a huge array
+	long span = (long) maxID - minID + 1;
+	if (span > Math.min((long) MAX_SLOTS_PER_PROMPT * promptCount + SLACK, Integer.MAX_VALUE - 8)) {
+	    this.prompts = null;
+	    this.sparsePrompts = ImmutableMap.copyOf(prompts);
+	} else {
+	    this.prompts = new DialoguePrompt[(int) span];
+	    this.sparsePrompts = null;
+	    for (Map.Entry<Integer, DialoguePrompt> entry : prompts.entrySet()) {
+		this.prompts[entry.getKey() - minID] = checkNotNull(entry.getValue());
+	    }
+	}
+
+	// Resolve transitions once, so that sessions never look prompts up
+	for (DialoguePrompt prompt : prompts.values()) {
+	    prompt.link(this);
+	}
+    }
+
+    /**
+     * Constructor for subclasses storing their prompts themselves. They must
+     * override every method accessing the prompts.
+     */
+    Dialogue(String name, int firstPrompt, Map<Character, String> prefixes) {
+	this.name = checkNotNull(name);
+	this.firstPrompt = firstPrompt;
+	this.prefixes = ImmutableMap.copyOf(prefixes);
+	this.prompts = null;
+	this.sparsePrompts = null;
+	this.baseID = 0;
+	this.promptCount = 0;
     }
 
     public String getName() {
@@ -37,20 +112,97 @@ public class Dialogue {
     }
 
     public DialoguePrompt firstPrompt() {
-	return prompts.get(firstPrompt);
+	return getPrompt(firstPrompt);
     }
 
     public DialoguePrompt getPrompt(int promptID) {
-	return prompts.get(promptID);
+	if (prompts == null) {
+	    return sparsePrompts.get(promptID);
+	}
+
+	int index = promptID - baseID;
+	return (index >= 0 && index < prompts.length) ? prompts[index] : null;
+    }
+
+    public int promptCount() {
+	return promptCount;
+    }
+
+    /**
+     * @return the hash of the source this dialogue was compiled from, or
+     *         {@code null} if unknown (for instance if it was saved without
+     *         metadata).
+     */
+    public HashCode sourceHash() {
+	return sourceHash;
+    }
+
+    void setSourceHash(HashCode sourceHash) {
+	this.sourceHash = sourceHash;
+    }
+
+    /**
+     * Estimates the amount of heap memory retained by this dialogue, in
+     * bytes. Used to weigh dialogues in the {@code DialoguesCache}; the
+     * estimate only needs to be proportionate, not exact.
+     *
+     * @return the estimated size of this dialogue.
+     */
+    public int estimatedSize() {
+	// Prompts never change, so they are only walked once
+	int size = estimatedSize;
+	if (size < 0) {
+	    size = computeEstimatedSize();
+	    estimatedSize = size;
+	}
+	return size;
+    }
+
+    private int computeEstimatedSize() {
+	long size = DIALOGUE_OVERHEAD + estimatedSize(prefixes);
+	if (prompts == null) {
+	    size += (long) ENTRY_OVERHEAD * promptCount;
+	    for (DialoguePrompt prompt : sparsePrompts.values()) {
+		size += prompt.estimatedSize();
+	    }
+	} else {
+	    size += 4L * prompts.length;
+	    for (DialoguePrompt prompt : prompts) {
+		if (prompt != null) {
+		    size += prompt.estimatedSize();
+		}
+	    }
+	}
+	return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    static long estimatedSize(Map<Character, String> prefixes) {
+	long size = 0;
+	for (String prefix : prefixes.values()) {
+	    size += ENTRY_OVERHEAD + DialoguePrompt.estimatedSize(prefix);
+	}
+	return size;
     }
 
     public DialogueSession makeSession(Collection<Player> players) {
 	return new DialogueSession(this, players);
     }
 
+    /**
+     * @return a new map of every prompt by ID, in ascending order of ID.
+     */
     public Map<Integer, DialoguePrompt> prompts() {
-	// prompts field will always be an ImmutableMap; it's safe to return the instance itself
-	return prompts;
+	if (prompts == null) {
+	    return ImmutableSortedMap.copyOf(sparsePrompts);
+	}
+
+	ImmutableMap.Builder<Integer, DialoguePrompt> builder = ImmutableMap.builder();
+	for (int i = 0; i < prompts.length; ++i) {
+	    if (prompts[i] != null) {
+		builder.put(baseID + i, prompts[i]);
+	    }
+	}
+	return builder.build();
     }
 
     public Map<Character, String> messagePrefixes() {
@@ -0,0 +1,267 @@
+package io.github.totom3.dialogues;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the prompt graph of a dialogue when it is compiled. Prompts or
+ * choices leading to a prompt that does not exist, and cycles of prompts
+ * without any delay or choice, are errors; prompts that can never be reached
+ * are only warned about.
+ * <p>
+ * Also computes the worst-case number of steps a session executes in a
+ * single tick, from the moment it wakes up until it waits again. Each prompt
+ * costs up to three steps: accepting it, sending its message, and moving on
+ * once the message is sent.
+ *
+ * @author Totom3
+ */
+public final class DialogueAnalyzer {
+
+    /**
+     * Number of steps of a cycle of prompts without delays, which never ends.
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    public static Report analyze(Dialogue dialogue) {
+	return new DialogueAnalyzer(dialogue).analyze();
+    }
+
+    private final Dialogue dialogue;
+    private final List<DialoguePrompt> prompts;
+    private final Map<Integer, Integer> indexes;
+
+    private final List<String> errors = new ArrayList<>();
+    private final List<String> warnings = new ArrayList<>();
+
+    private DialogueAnalyzer(Dialogue dialogue) {
+	this.dialogue = dialogue;
+	this.prompts = new ArrayList<>(dialogue.prompts().values());
+	this.indexes = new HashMap<>(prompts.size() * 2);
+	for (int i = 0; i < prompts.size(); ++i) {
+	    indexes.put(prompts.get(i).promptID(), i);
+	}
+    }
+
+    private Report analyze() {
+	checkReferences();
+	checkReachability();
+	int maxSteps = computeMaxSteps();
+	if (maxSteps != UNBOUNDED && maxSteps > DialogueSession.MAX_STEPS_PER_TICK) {
+	    warnings.add("Up to " + maxSteps + " steps may run without delay; sessions will spread them over "
+		    + ((maxSteps + DialogueSession.MAX_STEPS_PER_TICK - 1) / DialogueSession.MAX_STEPS_PER_TICK) + " ticks");
+	}
+	return new Report(errors, warnings, maxSteps);
+    }
+
+    private void checkReferences() {
+	for (DialoguePrompt prompt : prompts) {
+	    // Prompts offering choices only move on to their next prompt once
+	    // the choices time out
+	    boolean followsNext = !prompt.requiresChoices() || prompt.hasChoiceTimeout();
+	    if (followsNext && isDangling(prompt.nextPromptID())) {
+		errors.add("Prompt " + prompt.promptID() + " leads to missing prompt " + prompt.nextPromptID());
+	    }
+
+	    for (InputChoice choice : prompt.inputChoices()) {
+		if (isDangling(choice.nextPromptID())) {
+		    errors.add("Choice " + choice.choiceID() + " of prompt " + prompt.promptID()
+			    + " leads to missing prompt " + choice.nextPromptID());
+		}
+	    }
+	}
+    }
+
+    private boolean isDangling(int promptID) {
+	return promptID >= 0 && !indexes.containsKey(promptID);
+    }
+
+    private void checkReachability() {
+	boolean[] reached = new boolean[prompts.size()];
+	Deque<Integer> queue = new ArrayDeque<>();
+	reach(dialogue.firstPromptID(), reached, queue);
+	while (!queue.isEmpty()) {
+	    DialoguePrompt prompt = prompts.get(queue.poll());
+	    if (!prompt.requiresChoices() || prompt.hasChoiceTimeout()) {
+		reach(prompt.nextPromptID(), reached, queue);
+	    }
+
+	    for (InputChoice choice : prompt.inputChoices()) {
+		reach(choice.nextPromptID(), reached, queue);
+	    }
+	}
+
+	List<Integer> unreachable = new ArrayList<>();
+	for (int i = 0; i < reached.length; ++i) {
+	    if (!reached[i]) {
+		unreachable.add(prompts.get(i).promptID());
+	    }
+	}
+
+	if (!unreachable.isEmpty()) {
+	    warnings.add("Unreachable prompt(s): " + unreachable);
+	}
+    }
+
+    private void reach(int promptID, boolean[] reached, Deque<Integer> queue) {
+	Integer index = indexes.get(promptID);
+	if (index != null && !reached[index]) {
+	    reached[index] = true;
+	    queue.add(index);
+	}
+    }
+
+    /**
+     * @return the index of the prompt a session moves on to right after
+     *         sending the message of the given prompt, without waiting; or
+     *         {@code -1} if it waits, or if the dialogue ends.
+     */
+    private int instantNext(DialoguePrompt prompt) {
+	if (prompt.hasInitialDelay() || prompt.hasFinalDelay() || prompt.requiresChoices()) {
+	    return -1;
+	}
+
+	Integer index = indexes.get(prompt.nextPromptID());
+	return (index == null) ? -1 : index;
+    }
+
+    private int computeMaxSteps() {
+	int[] chain = computeChains();
+
+	// A session wakes up when it starts, after a delay, when a choice is
+	// selected, or when a choice times out
+	int max = chainOf(dialogue.firstPromptID(), chain);
+	for (DialoguePrompt prompt : prompts) {
+	    int afterMessage = prompt.requiresChoices() ? 1 : add(1, chainOf(prompt.nextPromptID(), chain));
+	    if (prompt.hasInitialDelay()) {
+		max = Math.max(max, prompt.hasFinalDelay() ? 1 : add(1, afterMessage));
+	    }
+
+	    if (prompt.hasFinalDelay()) {
+		max = Math.max(max, afterMessage);
+	    }
+
+	    for (InputChoice choice : prompt.inputChoices()) {
+		max = Math.max(max, chainOf(choice.nextPromptID(), chain));
+	    }
+
+	    if (prompt.requiresChoices() && prompt.hasChoiceTimeout()) {
+		max = Math.max(max, add(1, chainOf(prompt.nextPromptID(), chain)));
+	    }
+	}
+	return max;
+    }
+
+    private int chainOf(int promptID, int[] chain) {
+	Integer index = indexes.get(promptID);
+	return (index == null) ? 0 : chain[index];
+    }
+
+    /**
+     * Computes, for each prompt, the number of steps a session executes from
+     * the moment it accepts the prompt until it waits. Prompts without delay
+     * lead to at most one other prompt, so following them either ends on a
+     * prompt that waits or loops; loops are reported as errors.
+     */
+    private int[] computeChains() {
+	int size = prompts.size();
+	int[] chain = new int[size];
+	byte[] state = new byte[size]; // 0: unvisited, 1: on the path, 2: done
+	List<Integer> path = new ArrayList<>();
+
+	for (int start = 0; start < size; ++start) {
+	    path.clear();
+	    int current = start;
+	    while (current != -1 && state[current] == 0) {
+		state[current] = 1;
+		path.add(current);
+		current = instantNext(prompts.get(current));
+	    }
+
+	    int steps;
+	    if (current == -1) {
+		steps = 0;
+	    } else if (state[current] == 2) {
+		steps = chain[current];
+	    } else {
+		reportCycle(path.subList(path.indexOf(current), path.size()));
+		steps = UNBOUNDED;
+	    }
+
+	    for (int i = path.size() - 1; i >= 0; --i) {
+		int index = path.get(i);
+		DialoguePrompt prompt = prompts.get(index);
+		if (prompt.hasInitialDelay()) {
+		    steps = 1;
+		} else if (prompt.hasFinalDelay()) {
+		    steps = 2;
+		} else if (prompt.requiresChoices() || instantNext(prompt) == -1) {
+		    steps = 3;
+		} else {
+		    steps = add(3, steps);
+		}
+
+		chain[index] = steps;
+		state[index] = 2;
+	    }
+	}
+	return chain;
+    }
+
+    private void reportCycle(List<Integer> cycle) {
+	List<Integer> ids = new ArrayList<>(cycle.size());
+	for (int index : cycle) {
+	    ids.add(prompts.get(index).promptID());
+	}
+	errors.add("Prompts " + ids + " loop without any delay or choice");
+    }
+
+    private static int add(int steps, int other) {
+	return (other == UNBOUNDED) ? UNBOUNDED : (int) Math.min(UNBOUNDED - 1, (long) steps + other);
+    }
+
+    /**
+     * The outcome of the analysis of a dialogue.
+     */
+    public static final class Report {
+
+	private final List<String> errors;
+	private final List<String> warnings;
+	private final int maxStepsPerTick;
+
+	Report(List<String> errors, List<String> warnings, int maxStepsPerTick) {
+	    this.errors = ImmutableList.copyOf(errors);
+	    this.warnings = ImmutableList.copyOf(warnings);
+	    this.maxStepsPerTick = maxStepsPerTick;
+	}
+
+	/**
+	 * @return the problems preventing the dialogue from being compiled.
+	 */
+	public List<String> errors() {
+	    return errors;
+	}
+
+	public List<String> warnings() {
+	    return warnings;
+	}
+
+	public boolean hasErrors() {
+	    return !errors.isEmpty();
+	}
+
+	/**
+	 * @return the worst-case number of steps a session executes in a
+	 *         single tick, or {@link #UNBOUNDED} if the dialogue loops
+	 *         without delay.
+	 */
+	public int maxStepsPerTick() {
+	    return maxStepsPerTick;
+	}
+    }
+}
@@ -0,0 +1,419 @@
+package io.github.totom3.dialogues;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.github.totom3.commons.binary.DeserializingException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles dialogue sources (Excel, CSV or TSV files) to {@code .dlg} files
+ * off the main thread. Bulk compiles parse and serialize every file in
+ * parallel on a dedicated fork-join pool. Dialogues are checked by the
+ * {@link DialogueAnalyzer} before being saved.
+ *
+ * @author Totom3
+ */
+public class DialogueCompiler {
+
+    /**
+     * Version of the compiler, recorded in compiled files. Must be bumped
+     * whenever a change to the parser changes the output for the same source,
+     * so that sources get compiled again.
+     */
+    public static final int COMPILER_VERSION = 2;
+
+    private static final DialogueCompiler instance = new DialogueCompiler();
+
+    public static DialogueCompiler get() {
+	return instance;
+    }
+
+    private final ForkJoinPool pool;
+
+    private DialogueCompiler() {
+	this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), (p) -> {
+	    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+	    thread.setName("Dialogues Compiler #" + thread.getPoolIndex());
+	    thread.setDaemon(true);
+	    return thread;
+	}, null, false);
+    }
+
+    void shutdown() {
+	pool.shutdownNow();
+    }
+
+    /**
+     * Compiles the dialogues of a source file and saves them, unless they are
+     * up to date. Previous versions of the dialogues that are loaded are
+     * replaced; others are only loaded if {@code load} is {@code true}.
+     *
+     * @param name the name of the source, or of a dialogue compiled from a
+     *             sheet of a workbook.
+     * @param load whether to load the compiled dialogues.
+     *
+     * @return a future of the compiled dialogues, or completed with the cause
+     *         of the failure if they could not be compiled. If they were up to
+     *         date, the future holds the existing dialogues, loaded, when
+     *         {@code load} is {@code true}, and is empty otherwise.
+     */
+    public CompletableFuture<List<Dialogue>> compile(String name, boolean load) {
+	return CompletableFuture.supplyAsync(() -> compile0(sourceOf(name), load), pool).thenCompose((future) -> future);
+    }
+
+    /**
+     * Same as {@code compile(name, false)}.
+     */
+    public CompletableFuture<List<Dialogue>> compile(String name) {
+	return compile(name, false);
+    }
+
+    /**
+     * Compiles every dialogue source found under the data folder whose
+     * compiled files are not up to date.
+     *
+     * @return a future of the result of the compilation. Failures of single
+     *         sources are reported in the result; the future itself only
+     *         fails if the data folder could not be listed.
+     */
+    public CompletableFuture<BulkResult> compileAll() {
+	long start = System.nanoTime();
+	return CompletableFuture.supplyAsync(this::discover, pool).thenCompose((names) -> {
+	    List<CompletableFuture<Object>> futures = new ArrayList<>(names.size());
+	    for (String name : names) {
+		futures.add(compile(name).handle((dialogues, ex) -> (ex == null) ? dialogues : unwrap(ex)));
+	    }
+
+	    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply((v) -> {
+		List<String> compiled = new ArrayList<>(names.size());
+		List<String> skipped = new ArrayList<>();
+		Map<String, Throwable> errors = new TreeMap<>();
+		for (int i = 0; i < names.size(); ++i) {
+		    Object outcome = futures.get(i).join();
+		    if (outcome instanceof Throwable) {
+			errors.put(names.get(i), (Throwable) outcome);
+		    } else if (((List<?>) outcome).isEmpty()) {
+			skipped.add(names.get(i));
+		    } else {
+			compiled.add(names.get(i));
+		    }
+		}
+		return new BulkResult(compiled, skipped, errors, System.nanoTime() - start);
+	    });
+	});
+    }
+
+    /**
+     * Checks whether the compiled files of a source were compiled from its
+     * current version by the current compiler. Only reads the headers of the
+     * compiled files; the source is hashed only if its size matches but its
+     * modification time does not.
+     *
+     * @param name the name of the source.
+     *
+     * @return {@code true} if compiling the source again can be skipped.
+     *
+     * @throws IOException if either file could not be read.
+     */
+    public boolean isUpToDate(String name) throws IOException {
+	return upToDateOutputs(name) != null;
+    }
+
+    /**
+     * @return the names of the compiled dialogues of a source if they are up
+     *         to date, or {@code null} otherwise.
+     *
+     * @see #isUpToDate(String)
+     */
+    private static List<String> upToDateOutputs(String name) throws IOException {
+	File source = DialoguesCache.getSourceFile(name);
+	if (!source.isFile()) {
+	    return null;
+	}
+
+	DialoguesCache cache = DialoguesCache.get();
+	for (String candidate : candidates(name)) {
+	    DialogueMetadata metadata = cache.readMetadata(candidate);
+	    if (metadata == null || !metadata.outputs().contains(candidate) || !metadata.matches(source)) {
+		continue;
+	    }
+
+	    for (String output : metadata.outputs()) {
+		DialogueMetadata other = cache.readMetadata(output);
+		if (other == null || !other.sourceHash().equals(metadata.sourceHash())) {
+		    return null;
+		}
+	    }
+	    return metadata.outputs();
+	}
+	return null;
+    }
+
+    /**
+     * @return the names of the dialogues a source may have been compiled to:
+     *         its own name, and the names of the {@code .dlg} files in the
+     *         folder of the same name. Workbooks with several sheets compile
+     *         to {@code <name>/<sheet>.dlg}, each of which lists the others.
+     */
+    private static List<String> candidates(String name) {
+	List<String> candidates = new ArrayList<>();
+	candidates.add(name);
+	File[] files = new File(DialoguesCache.BASE_FILE, name.replace('.', File.separatorChar)).listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		String fileName = file.getName();
+		if (fileName.endsWith(".dlg")) {
+		    candidates.add(name + '.' + fileName.substring(0, fileName.length() - 4));
+		}
+	    }
+	}
+	return candidates;
+    }
+
+    /**
+     * Finds the compiled files of a source that a new compile no longer
+     * produces, for instance the {@code .dlg} of the workbook once it has a
+     * second dialogue sheet, or the file of a removed sheet. Only files
+     * written by the compiler, and not belonging to a source of their own,
+     * are considered.
+     *
+     * @param name    the name of the source.
+     * @param outputs the dialogues the source now compiles to.
+     */
+    private static List<String> staleOutputs(String name, List<String> outputs) throws IOException {
+	List<String> stale = new ArrayList<>();
+	DialoguesCache cache = DialoguesCache.get();
+	for (String candidate : candidates(name)) {
+	    if (!outputs.contains(candidate) && sourceOf(candidate).equals(name) && cache.readMetadata(candidate) != null) {
+		stale.add(candidate);
+	    }
+	}
+	return stale;
+    }
+
+    /**
+     * @return the name of the source a dialogue is compiled from: its own
+     *         name, or the name of its workbook if it was compiled from a
+     *         sheet.
+     */
+    static String sourceOf(String name) {
+	if (DialoguesCache.getSourceFile(name).isFile()) {
+	    return name;
+	}
+
+	int dot = name.lastIndexOf('.');
+	if (dot > 0 && DialoguesCache.getExcelFile(name.substring(0, dot)).isFile()) {
+	    return name.substring(0, dot);
+	}
+	return name;
+    }
+
+    /**
+     * Parses the source, then hands the dialogues to the background writer.
+     *
+     * @return a future completed once every dialogue is saved.
+     */
+    private CompletableFuture<List<Dialogue>> compile0(String name, boolean load) {
+	DialoguesCache cache = DialoguesCache.get();
+	List<Dialogue> dialogues;
+	DialogueMetadata metadata;
+	try {
+	    List<String> upToDate = upToDateOutputs(name);
+	    if (upToDate != null) {
+		return load ? loadAll(upToDate) : CompletableFuture.completedFuture(Collections.<Dialogue>emptyList());
+	    }
+
+	    // Hashed before parsing, so that a concurrent edit of the source
+	    // causes the next compile to run again rather than be skipped
+	    metadata = DialogueMetadata.forSource(DialoguesCache.getSourceFile(name));
+	    dialogues = cache.compileAllFromSource(name, pool);
+	} catch (ExecutionException ex) {
+	    throw new CompletionException(ex.getCause());
+	} catch (IOException ex) {
+	    throw new CompletionException(ex);
+	}
+
+	// Check every dialogue before saving any, so that a workbook is never
+	// saved partially
+	List<String> outputs = new ArrayList<>(dialogues.size());
+	List<DialogueAnalyzer.Report> reports = new ArrayList<>(dialogues.size());
+	for (Dialogue dialogue : dialogues) {
+	    dialogue.setSourceHash(metadata.sourceHash());
+	    outputs.add(dialogue.getName());
+	    DialogueAnalyzer.Report report = DialogueAnalyzer.analyze(dialogue);
+	    if (report.hasErrors()) {
+		throw new CompletionException(new DeserializingException("Dialogue '" + dialogue.getName() + "' is invalid: "
+			+ String.join("; ", report.errors())));
+	    }
+	    reports.add(report);
+	}
+	metadata = metadata.withOutputs(outputs);
+
+	List<String> stale;
+	try {
+	    stale = staleOutputs(name, outputs);
+	} catch (IOException ex) {
+	    throw new CompletionException(ex);
+	}
+
+	Logger logger = Main.get().getLogger();
+	CompletableFuture<?>[] saves = new CompletableFuture<?>[dialogues.size()];
+	for (int i = 0; i < saves.length; ++i) {
+	    Dialogue dialogue = dialogues.get(i);
+	    DialogueAnalyzer.Report report = reports.get(i);
+	    for (String warning : report.warnings()) {
+		logger.warning("Dialogue '" + dialogue.getName() + "': " + warning);
+	    }
+
+	    saves[i] = cache.saveToBinaryAsync(dialogue, metadata.withMaxStepsPerTick(report.maxStepsPerTick())).thenRun(() -> {
+		if (load) {
+		    cache.put(dialogue);
+		} else {
+		    cache.replaceIfLoaded(dialogue);
+		}
+	    });
+	}
+	// Stale outputs are only deleted once the new ones are saved
+	return CompletableFuture.allOf(saves).thenApply((v) -> {
+	    for (String output : stale) {
+		try {
+		    cache.deleteBinary(output);
+		    logger.info("Deleted dialogue '" + output + "', no longer compiled from '" + name + "'");
+		} catch (IOException ex) {
+		    logger.log(Level.WARNING, "Could not delete stale dialogue '" + output + "'", ex);
+		}
+	    }
+	    return dialogues;
+	});
+    }
+
+    /**
+     * Loads compiled dialogues that did not need to be compiled again.
+     */
+    private static CompletableFuture<List<Dialogue>> loadAll(List<String> names) {
+	List<CompletableFuture<Dialogue>> loads = new ArrayList<>(names.size());
+	for (String name : names) {
+	    loads.add(DialoguesCache.get().getOrLoadAsync(name));
+	}
+
+	return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[loads.size()])).thenApply((v) -> {
+	    List<Dialogue> dialogues = new ArrayList<>(loads.size());
+	    for (CompletableFuture<Dialogue> future : loads) {
+		dialogues.add(future.join());
+	    }
+	    return dialogues;
+	});
+    }
+
+    /**
+     * @return the names of all dialogues with a source under the data folder,
+     *         sorted.
+     */
+    private List<String> discover() {
+	Path base = DialoguesCache.BASE_FILE.toPath();
+	try (Stream<Path> files = Files.walk(base)) {
+	    return files
+		    .filter((path) -> sourceExtension(path) != null && Files.isRegularFile(path))
+		    .map((path) -> toName(base.relativize(path)))
+		    .distinct()
+		    .sorted()
+		    .collect(Collectors.toList());
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    /**
+     * @return the source extension of the file, or {@code null} if it is not
+     *         a dialogue source.
+     */
+    static String sourceExtension(Path path) {
+	String fileName = path.getFileName().toString();
+	for (String extension : DialoguesCache.SOURCE_EXTENSIONS) {
+	    if (fileName.endsWith(extension)) {
+		return extension;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * @param relative the path of a source file, relative to the data folder.
+     *
+     * @return the name of the dialogue compiled from the file.
+     */
+    static String toName(Path relative) {
+	String name = relative.toString();
+	name = name.substring(0, name.length() - sourceExtension(relative).length());
+	return name.replace(File.separatorChar, '.');
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+	if (ex instanceof CompletionException && ex.getCause() != null) {
+	    return ex.getCause();
+	}
+	return ex;
+    }
+
+    /**
+     * The outcome of a bulk compilation.
+     */
+    public static final class BulkResult {
+
+	private final List<String> compiled;
+	private final List<String> skipped;
+	private final Map<String, Throwable> errors;
+	private final long elapsedNanos;
+
+	private BulkResult(List<String> compiled, List<String> skipped, Map<String, Throwable> errors, long elapsedNanos) {
+	    this.compiled = ImmutableList.copyOf(compiled);
+	    this.skipped = ImmutableList.copyOf(skipped);
+	    this.errors = ImmutableMap.copyOf(errors);
+	    this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return the names of the dialogues that were compiled successfully.
+	 */
+	public List<String> compiled() {
+	    return compiled;
+	}
+
+	/**
+	 * @return the names of the dialogues that were up to date.
+	 */
+	public List<String> skipped() {
+	    return skipped;
+	}
+
+	/**
+	 * @return the cause of failure of each dialogue that could not be
+	 *         compiled, by name.
+	 */
+	public Map<String, Throwable> errors() {
+	    return errors;
+	}
+
+	public long elapsedMillis() {
+	    return elapsedNanos / 1_000_000;
+	}
+    }
+}
@@ -0,0 +1,146 @@
+package io.github.totom3.dialogues;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Describes the source a {@code .dlg} file was compiled from. Stored in the
+ * header of the file, so that compiling an unchanged source can be skipped
+ * without parsing it.
+ *
+ * @author Totom3
+ */
+public final class DialogueMetadata {
+
+    /**
+     * Returned by {@link #maxStepsPerTick()} when the dialogue was not
+     * analyzed.
+     */
+    public static final int UNKNOWN_STEPS = -1;
+
+    /**
+     * Computes the metadata of a source file, hashing its whole content.
+     *
+     * @param source the source file.
+     *
+     * @return the metadata of the source file, for the current compiler.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    public static DialogueMetadata forSource(File source) throws IOException {
+	long length = source.length();
+	long modified = source.lastModified();
+	HashCode hash = Files.hash(source, Hashing.murmur3_128());
+	return new DialogueMetadata(DialogueCompiler.COMPILER_VERSION, hash, length, modified, ImmutableList.<String>of(), UNKNOWN_STEPS);
+    }
+
+    private final int compilerVersion;
+    private final HashCode sourceHash;
+    private final long sourceLength;
+    private final long sourceModified;
+    private final List<String> outputs;
+    private final int maxStepsPerTick;
+
+    DialogueMetadata(int compilerVersion, HashCode sourceHash, long sourceLength, long sourceModified, List<String> outputs, int maxStepsPerTick) {
+	this.compilerVersion = compilerVersion;
+	this.sourceHash = checkNotNull(sourceHash);
+	this.sourceLength = sourceLength;
+	this.sourceModified = sourceModified;
+	this.outputs = ImmutableList.copyOf(outputs);
+	this.maxStepsPerTick = maxStepsPerTick;
+    }
+
+    /**
+     * @return a copy of this metadata, listing the given dialogues as compiled
+     *         from the source.
+     */
+    public DialogueMetadata withOutputs(List<String> outputs) {
+	return new DialogueMetadata(compilerVersion, sourceHash, sourceLength, sourceModified, outputs, maxStepsPerTick);
+    }
+
+    /**
+     * @return a copy of this metadata, recording the worst-case number of
+     *         steps per tick of the dialogue.
+     */
+    public DialogueMetadata withMaxStepsPerTick(int maxStepsPerTick) {
+	return new DialogueMetadata(compilerVersion, sourceHash, sourceLength, sourceModified, outputs, maxStepsPerTick);
+    }
+
+    public int compilerVersion() {
+	return compilerVersion;
+    }
+
+    /**
+     * @return the 128-bit murmur3 hash of the source file.
+     */
+    public HashCode sourceHash() {
+	return sourceHash;
+    }
+
+    public long sourceLength() {
+	return sourceLength;
+    }
+
+    public long sourceModified() {
+	return sourceModified;
+    }
+
+    /**
+     * @return the names of every dialogue compiled from the same source, this
+     *         one included; empty if unknown. A workbook with several sheets
+     *         compiles to several dialogues.
+     */
+    public List<String> outputs() {
+	return outputs;
+    }
+
+    /**
+     * @return the worst-case number of steps a session of the dialogue
+     *         executes in a single tick, or {@link #UNKNOWN_STEPS}.
+     * @see DialogueAnalyzer
+     */
+    public int maxStepsPerTick() {
+	return maxStepsPerTick;
+    }
+
+    /**
+     * Checks whether compiling the given source with the current compiler
+     * would produce the file described by this metadata. The source is only
+     * hashed if its size matches but its modification time does not.
+     *
+     * @param source the source file.
+     *
+     * @return {@code true} if the source has not changed since it was
+     *         compiled.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    public boolean matches(File source) throws IOException {
+	if (compilerVersion != DialogueCompiler.COMPILER_VERSION) {
+	    return false;
+	}
+
+	long length = source.length();
+	if (length != sourceLength) {
+	    return false;
+	}
+
+	if (source.lastModified() == sourceModified) {
+	    return true;
+	}
+
+	return sourceHash.equals(Files.hash(source, Hashing.murmur3_128()));
+    }
+
+    @Override
+    public String toString() {
+	return "DialogueMetadata{compilerVersion=" + compilerVersion + ", sourceHash=" + sourceHash
+		+ ", sourceLength=" + sourceLength + ", sourceModified=" + sourceModified + ", outputs=" + outputs + ", maxStepsPerTick=" + maxStepsPerTick + '}';
+    }
+}
@@ -0,0 +1,265 @@
+package io.github.totom3.dialogues;
+
+import io.github.totom3.commons.binary.ByteBufferDeserializationContext;
+import io.github.totom3.commons.binary.DeserializationContext;
+import io.github.totom3.commons.binary.DeserializingException;
+import io.github.totom3.commons.binary.SerializationContext;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single file holding many compiled dialogues. The file starts with an
+ * index of {@code (name, offset, length, modified)} entries sorted by name,
+ * followed by the dialogues, each encoded exactly like a {@code .dlg} file.
+ * The length and modification time of each packed {@code .dlg} file are kept,
+ * so that a dialogue compiled again after packing is not loaded from the
+ * pack.
+ * <p>
+ * An open pack keeps the index in memory and the file memory-mapped; looking
+ * up a dialogue is a binary search, and only the dialogues actually loaded
+ * are decoded.
+ *
+ * @author Totom3
+ */
+public class DialoguePack {
+
+    public static final String FILE_NAME = "dialogues.dlgpack";
+
+    static final int MAGIC = 0xD1A1DA7A;
+    static final int FORMAT_VERSION = 2;
+
+    private static final String CORRUPTED_MSG = " (pack is likely corrupted, try re-packing)";
+
+    /**
+     * Opens a pack and reads its index.
+     *
+     * @param file the pack file.
+     *
+     * @return the opened pack.
+     *
+     * @throws IOException if the pack could not be read or is malformed.
+     */
+    public static DialoguePack open(File file) throws IOException {
+	ByteBuffer buffer = BinaryDialogueLoader.map(file.toPath());
+	DeserializationContext context = new ByteBufferDeserializationContext(buffer);
+	if (context.readInt() != MAGIC) {
+	    throw new DeserializingException("File " + file + " is not a dialogue pack");
+	}
+
+	int version = context.readInt();
+	if (version != FORMAT_VERSION) {
+	    throw new DeserializingException("unsupported pack format version " + version + " (try re-packing)");
+	}
+
+	int count = context.readInt();
+	if (count < 0) {
+	    throw new DeserializingException("read invalid dialogue count " + count + CORRUPTED_MSG);
+	}
+
+	String[] names = new String[count];
+	int[] offsets = new int[count];
+	int[] lengths = new int[count];
+	long[] modified = new long[count];
+	for (int i = 0; i < count; ++i) {
+	    names[i] = context.readString();
+	    offsets[i] = context.readInt();
+	    lengths[i] = context.readInt();
+	    modified[i] = context.readLong();
+
+	    if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+		throw new DeserializingException("index is not sorted at '" + names[i] + "'" + CORRUPTED_MSG);
+	    }
+	}
+
+	ByteBuffer body = buffer.slice();
+	for (int i = 0; i < count; ++i) {
+	    if (offsets[i] < 0 || lengths[i] < 0 || (long) offsets[i] + lengths[i] > body.capacity()) {
+		throw new DeserializingException("entry '" + names[i] + "' exceeds pack size" + CORRUPTED_MSG);
+	    }
+	}
+
+	return new DialoguePack(file, names, offsets, lengths, modified, body);
+    }
+
+    /**
+     * Writes a pack from compiled dialogue files. The pack is written to a
+     * temporary file and synced to disk first, then moved over any previous
+     * pack. Callers must not write the same pack concurrently.
+     *
+     * @param file  the pack file.
+     * @param files the {@code .dlg} files to pack, by dialogue name.
+     *
+     * @throws IOException if a file could not be read, or the pack could not
+     *                     be written.
+     */
+    public static void write(File file, SortedMap<String, File> files) throws IOException {
+	Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+	try {
+	    try (FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+		    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+		SerializationContext context = new SerializationContext(out);
+		context.writeInt(MAGIC);
+		context.writeInt(FORMAT_VERSION);
+
+		// Write index
+		context.writeInt(files.size());
+		long offset = 0;
+		Map<String, Long> modified = new HashMap<>(files.size() * 2);
+		for (Entry<String, File> entry : files.entrySet()) {
+		    long length = entry.getValue().length();
+		    if (offset + length > Integer.MAX_VALUE) {
+			throw new IOException("Cannot pack more than 2 GB of dialogues");
+		    }
+
+		    long lastModified = entry.getValue().lastModified();
+		    modified.put(entry.getKey(), lastModified);
+		    context.writeString(entry.getKey());
+		    context.writeInt((int) offset);
+		    context.writeInt((int) length);
+		    context.writeLong(lastModified);
+		    offset += length;
+		}
+
+		// Write dialogues
+		for (Entry<String, File> entry : files.entrySet()) {
+		    byte[] bytes = Files.readAllBytes(entry.getValue().toPath());
+		    if (bytes.length != entry.getValue().length() || entry.getValue().lastModified() != modified.get(entry.getKey())) {
+			throw new IOException("File of dialogue '" + entry.getKey() + "' changed while packing");
+		    }
+		    out.write(bytes);
+		}
+
+		out.flush();
+		fileOut.getFD().sync();
+	    }
+
+	    BinaryDialogueLoader.replace(temp, file.toPath());
+	} catch (IOException | RuntimeException ex) {
+	    Files.deleteIfExists(temp);
+	    throw ex;
+	}
+    }
+
+    private final File file;
+    private final String[] names;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] modified;
+    private final ByteBuffer body;
+
+    /**
+     * Packed dialogues whose {@code .dlg} file was deleted by the plugin since
+     * the pack was opened. They are no longer served from the pack.
+     */
+    private final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+    private DialoguePack(File file, String[] names, int[] offsets, int[] lengths, long[] modified, ByteBuffer body) {
+	this.file = file;
+	this.names = names;
+	this.offsets = offsets;
+	this.lengths = lengths;
+	this.modified = modified;
+	this.body = body;
+    }
+
+    public File file() {
+	return file;
+    }
+
+    public int size() {
+	return names.length - removed.size();
+    }
+
+    /**
+     * @return the names of the packed dialogues, sorted.
+     */
+    public List<String> names() {
+	List<String> list = Arrays.asList(names);
+	if (!removed.isEmpty()) {
+	    list = new ArrayList<>(list);
+	    list.removeAll(removed);
+	}
+	return Collections.unmodifiableList(list);
+    }
+
+    public boolean contains(String name) {
+	return indexOf(name) >= 0;
+    }
+
+    /**
+     * Stops serving a dialogue from this pack, once its {@code .dlg} file was
+     * deleted. Otherwise the dialogue would still load from the pack until it
+     * is packed again.
+     *
+     * @param name the name of the dialogue.
+     */
+    public void remove(String name) {
+	if (Arrays.binarySearch(names, name) >= 0) {
+	    removed.add(name);
+	}
+    }
+
+    private int indexOf(String name) {
+	int index = Arrays.binarySearch(names, name);
+	return (index < 0 || removed.contains(name)) ? -1 : index;
+    }
+
+    /**
+     * Checks whether the packed version of a dialogue is the same as its
+     * {@code .dlg} file, by comparing the length and modification time of the
+     * file to the ones it had when it was packed.
+     *
+     * @param name the name of a packed dialogue.
+     * @param file the {@code .dlg} file of the dialogue.
+     *
+     * @return {@code true} if the file does not exist or was not changed
+     *         since it was packed; {@code false} if it was, or if the pack
+     *         does not contain the dialogue or it was {@link #remove(String)
+     *         removed}.
+     */
+    public boolean isCurrent(String name, File file) {
+	int index = indexOf(name);
+	if (index < 0) {
+	    return false;
+	}
+
+	if (!file.isFile()) {
+	    return true;
+	}
+	return file.length() == lengths[index] && file.lastModified() == modified[index];
+    }
+
+    /**
+     * @param name the name of a dialogue.
+     *
+     * @return a new buffer over the encoded dialogue, or {@code null} if the
+     *         pack does not contain it.
+     */
+    public ByteBuffer entry(String name) {
+	int index = indexOf(name);
+	if (index < 0) {
+	    return null;
+	}
+
+	ByteBuffer buffer = body.duplicate();
+	buffer.position(offsets[index]);
+	buffer.limit(offsets[index] + lengths[index]);
+	return buffer.slice();
+    }
+}
@@ -11,6 +11,10 @@ import org.apache.commons.lang3.StringUtils;
  */
 public class DialoguePrompt {
 
+    private static final int PROMPT_OVERHEAD = 96;
+    private static final int CHOICE_OVERHEAD = 64;
+    private static final int STRING_OVERHEAD = 40;
+
     private Dialogue dialogue;
 
     private final String message;
@@ -21,6 +25,15 @@ public class DialoguePrompt {
     private final int timeout;
     private final List<InputChoice> choices;
 
+    private MessageTemplate messageTemplate;
+
+    /**
+     * Whether {@link #nextPrompt} has been resolved; prompts decoded on demand
+     * are not, so that they do not retain each other.
+     */
+    private boolean linked;
+    private DialoguePrompt nextPrompt;
+
     DialoguePrompt(String message, int promptID, int nextPromptID, int initialDelay, int finalDelay) {
 	this(message, promptID, nextPromptID, initialDelay, finalDelay, 0, null);
     }
@@ -41,12 +54,56 @@ public class DialoguePrompt {
 	    throw new IllegalStateException("already initialized");
 	}
 	this.dialogue = checkNotNull(dialogue);
+
+	// Compile messages once, now that the prefixes are known
+	this.messageTemplate = MessageTemplate.compile(message, dialogue.messagePrefixes());
+	for (InputChoice choice : choices) {
+	    choice.init(dialogue);
+	}
+    }
+
+    /**
+     * Resolves the next prompt of this prompt and of its choices, so that
+     * following them needs no lookup.
+     */
+    void link(Dialogue dialogue) {
+	this.nextPrompt = dialogue.getPrompt(nextPromptID);
+	this.linked = true;
+	for (InputChoice choice : choices) {
+	    choice.link(dialogue);
+	}
+    }
+
+    /**
+     * @return the estimated amount of heap memory retained by this prompt and
+     *         its choices, in bytes.
+     * @see Dialogue#estimatedSize()
+     */
+    int estimatedSize() {
+	// Each message is retained twice: raw, and compiled into a template
+	long size = PROMPT_OVERHEAD + 2 * estimatedSize(message);
+	for (InputChoice choice : choices) {
+	    size += CHOICE_OVERHEAD + 2 * (estimatedSize(choice.displayMessage()) + estimatedSize(choice.chatMessage()));
+	}
+	return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    static int estimatedSize(String str) {
+	return (str == null) ? 0 : STRING_OVERHEAD + 2 * str.length();
     }
 
     public String message() {
 	return message;
     }
 
+    /**
+     * @return the compiled message, prefix included, or {@code null} if this
+     *         prompt has no message.
+     */
+    public MessageTemplate messageTemplate() {
+	return messageTemplate;
+    }
+
     public boolean hasMessage() {
 	return message != null;
     }
@@ -60,7 +117,7 @@ public class DialoguePrompt {
     }
 
     public DialoguePrompt nextPrompt() {
-	return dialogue.getPrompt(nextPromptID);
+	return linked ? nextPrompt : dialogue.getPrompt(nextPromptID);
     }
 
     public int promptID() {
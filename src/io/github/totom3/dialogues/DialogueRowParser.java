@@ -0,0 +1,255 @@
+package io.github.totom3.dialogues;
+
+import com.google.common.base.Splitter;
+import io.github.totom3.commons.binary.DeserializingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Builds a dialogue from the rows of its source, one row at a time. Shared by
+ * every source format, so that they all produce the same dialogue from the
+ * same rows.
+ *
+ * @author Totom3
+ */
+class DialogueRowParser {
+
+    private static final String START_VAR = "start";
+    private static final String PREFIX_VAR = "prefixes";
+    private static final String PROMPT_IDENTIFIER = "prompt";
+
+    /**
+     * @return whether a row defines the first prompt or a prompt. Sources
+     *         without any such row, such as blank sheets, hold no dialogue.
+     */
+    static boolean isDialogueRow(SourceRow row) {
+	if (row.length() < 2) {
+	    return false;
+	}
+
+	String identifier = row.contents(0).toLowerCase();
+	return identifier.equals(START_VAR) || identifier.equals(PROMPT_IDENTIFIER);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" Utility Methods ">
+    private static String malformedPrefix(String contents, int row, int column) {
+	return "Malformed prefix statement '" + contents + "' (at row " + row + " and column " + column + ")";
+    }
+
+    private static int parsePositive(SourceRow row, int column, int currentRow, String type) throws DeserializingException {
+	long number = row.number(column);
+	if (number != SourceRow.NOT_A_NUMBER) {
+	    return (int) number;
+	}
+
+	String contents = row.contents(column);
+	if (StringUtils.isBlank(contents)) {
+	    return 0;
+	}
+
+	try {
+	    return Integer.parseUnsignedInt(contents);
+	} catch (NumberFormatException ex) {
+	    throw new DeserializingException("Could not parse " + type + " '" + contents + "' (at row " + currentRow + ")");
+	}
+    }
+
+    private static int parseID(SourceRow row, int column, int currentRow) throws DeserializingException {
+	long number = row.number(column);
+	if (number != SourceRow.NOT_A_NUMBER) {
+	    return (int) number;
+	}
+
+	String contents = row.contents(column);
+	if (StringUtils.isBlank(contents)) {
+	    return -1;
+	}
+
+	try {
+	    return Integer.parseUnsignedInt(contents);
+	} catch (NumberFormatException ex) {
+	    throw new DeserializingException("Could not parse prompt ID '" + contents + "' (at row " + currentRow + ")");
+	}
+    }
+
+// </editor-fold>
+
+    private final String name;
+
+    private int currentRow = -1;
+
+    private Integer firstPromptID;
+    private Map<Character, String> prefixes;
+    private final Map<Integer, DialoguePrompt> prompts = new HashMap<>();
+
+    DialogueRowParser(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Parses the next row of the source. Must be called for every row, empty
+     * ones included, since prompt IDs are derived from row numbers.
+     */
+    void parseRow(SourceRow row) throws DeserializingException {
+	++currentRow;
+
+	if (row.length() < 2) {
+	    return;
+	}
+
+	String identifier = row.contents(0).toLowerCase();
+	switch (identifier) {
+	    case PREFIX_VAR:
+		parsePrefixes(row);
+		break;
+	    case START_VAR:
+		parseStart(row);
+		break;
+	    case PROMPT_IDENTIFIER:
+		parsePrompt(row);
+	}
+    }
+
+    /**
+     * Creates the dialogue once every row has been parsed.
+     */
+    Dialogue finish() throws DeserializingException {
+	if (firstPromptID == null) {
+	    throw new DeserializingException("Missing 'START' variable");
+	}
+
+	// Last step: creating Dialogue and linking prompts to it
+	Dialogue dialogue = new Dialogue(name, firstPromptID, prompts, prefixes);
+	for (DialoguePrompt prompt : prompts.values()) {
+	    prompt.init(dialogue);
+	}
+	return dialogue;
+    }
+
+    private void parsePrefixes(SourceRow row) throws DeserializingException {
+	if (prefixes != null) {
+	    throw new DeserializingException("Variable 'PREFIXES' has been defined twice (at row " + currentRow + ")");
+	}
+
+	if (row.length() < 2) {
+	    throw new DeserializingException("Missing value(s) of 'PREFIXES' variable (at row " + currentRow + ")");
+	}
+
+	Map<Character, String> map = new HashMap<>();
+	Splitter splitter = Splitter.on('=').limit(2).omitEmptyStrings();
+	for (int column = 1; column < row.length(); ++column) {
+	    String contents = row.contents(column);
+	    if (StringUtils.isEmpty(contents)) {
+		break;
+	    }
+
+	    List<String> parts = splitter.splitToList(contents);
+	    if (parts.size() != 2) {
+		throw new DeserializingException(malformedPrefix(contents, currentRow, column));
+	    }
+
+	    String keyStr = parts.get(0);
+	    if (keyStr.length() != 1) {
+		throw new DeserializingException(malformedPrefix(contents, currentRow, column));
+	    }
+
+	    char key = keyStr.charAt(0);
+	    String value = parts.get(1);
+
+	    if (map.put(key, value) != null) {
+		throw new DeserializingException("Prefix '" + key + "' already present (at row " + currentRow + " and column " + column + ")");
+	    }
+	}
+
+	prefixes = map;
+    }
+
+    private void parseStart(SourceRow row) throws DeserializingException {
+	if (firstPromptID != null) {
+	    throw new DeserializingException("Variable 'START' has been defined twice (at row " + currentRow + ")");
+	}
+
+	if (row.length() < 2) {
+	    throw new DeserializingException("Missing value of 'START' variable (at row " + currentRow + ")");
+	}
+
+	long number = row.number(1);
+	if (number != SourceRow.NOT_A_NUMBER) {
+	    firstPromptID = (int) number;
+	    return;
+	}
+
+	String contents = row.contents(1);
+	try {
+	    firstPromptID = Integer.parseUnsignedInt(contents);
+	} catch (NumberFormatException ex) {
+	    throw new DeserializingException("Could not parse 'START' variable '" + contents + "' (at row " + currentRow + ")");
+	}
+    }
+
+    private void parsePrompt(SourceRow row) throws DeserializingException {
+	int promptID = currentRow + 1;
+
+	if (row.length() < 2) {
+	    throw new DeserializingException("Prompt cannot be empty (at row " + currentRow + ")");
+	}
+
+	String message = row.contents(Columns.MESSAGE);
+
+	int initialDelay = parsePositive(row, Columns.INITIAL_DELAY, currentRow, "initial");
+
+	int finalDelay = parsePositive(row, Columns.FINAL_DELAY, currentRow, "final");
+
+	int nextPromptID = parseID(row, Columns.NEXT_PROMPT, currentRow);
+
+	// prompt doesn't offer any choices
+	if (row.length() <= Columns.CHOICES_START) {
+	    DialoguePrompt prompt = new DialoguePrompt(message, promptID, nextPromptID, initialDelay, finalDelay);
+	    prompts.put(promptID, prompt);
+	    return;
+	}
+
+	// prompt offers choices
+	int timeout = parsePositive(row, Columns.TIMEOUT, currentRow, "timeout");
+
+	List<InputChoice> choices = new ArrayList<>(5);
+	int choiceID = 0;
+	for (int i = Columns.CHOICES_START; i < row.length(); i += Columns.CHOICE_LENGTH) {
+	    ++choiceID;
+
+	    String displayMessage = row.contents(i);
+	    String chatMessage = row.contents(i + 1);
+
+	    if (StringUtils.isBlank(displayMessage) && StringUtils.isBlank(chatMessage)
+		    && row.number(i + 2) == SourceRow.NOT_A_NUMBER && StringUtils.isBlank(row.contents(i + 2))) {
+		break;
+	    }
+
+	    int choiceNextPromptID = parseID(row, i + 2, currentRow);
+	    choices.add(new InputChoice(choiceID, choiceNextPromptID, displayMessage, chatMessage));
+	}
+
+	DialoguePrompt prompt = new DialoguePrompt(message, promptID, nextPromptID, initialDelay, finalDelay, timeout, choices);
+	prompts.put(promptID, prompt);
+    }
+
+    static final class Columns {
+
+	static final int MESSAGE = 1;
+
+	static final int INITIAL_DELAY = 3;
+	static final int FINAL_DELAY = 4;
+	static final int NEXT_PROMPT = 5;
+
+	static final int TIMEOUT = 7;
+	static final int CHOICES_START = 9;
+	static final int CHOICE_LENGTH = 4; // 3 data + 1 empty
+
+	private Columns() {
+	    throw new AssertionError();
+	}
+    }
+}
@@ -0,0 +1,273 @@
+package io.github.totom3.dialogues;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A hashed timing wheel driving every delay of every dialogue session from a
+ * single repeating Bukkit task. Scheduling and cancelling a timeout are both
+ * O(1), regardless of how many sessions are running.
+ *
+ * @author Totom3
+ */
+public class DialogueScheduler implements Runnable {
+
+    /**
+     * Number of buckets in the wheel. Must be a power of two. Delays longer
+     * than the wheel are handled by counting the remaining rounds.
+     */
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * Default number of session steps that may run per tick, across every
+     * session.
+     */
+    private static final int DEFAULT_STEPS_PER_TICK = 4096;
+
+    private static final DialogueScheduler instance = new DialogueScheduler();
+
+    public static DialogueScheduler get() {
+	return instance;
+    }
+
+    private final Bucket[] wheel;
+
+    /**
+     * The number of ticks elapsed since the wheel was started.
+     */
+    private long tick;
+
+    /**
+     * Session steps run per tick, and how many are left for the current one.
+     */
+    private int stepsPerTick = DEFAULT_STEPS_PER_TICK;
+    private int stepsLeft = DEFAULT_STEPS_PER_TICK;
+
+    private BukkitTask task;
+
+    private DialogueScheduler() {
+	this.wheel = new Bucket[WHEEL_SIZE];
+	for (int i = 0; i < WHEEL_SIZE; ++i) {
+	    wheel[i] = new Bucket();
+	}
+    }
+
+    void init() {
+	if (task != null) {
+	    throw new IllegalStateException("already initialized");
+	}
+	stepsPerTick = Math.max(1, Main.get().getConfig().getInt("sessions.steps-per-tick", DEFAULT_STEPS_PER_TICK));
+	stepsLeft = stepsPerTick;
+	task = Bukkit.getScheduler().runTaskTimer(Main.get(), this, 1, 1);
+    }
+
+    void shutdown() {
+	if (task != null) {
+	    task.cancel();
+	    task = null;
+	}
+
+	for (Bucket bucket : wheel) {
+	    bucket.clear();
+	}
+    }
+
+    /**
+     * Schedules a task to be ran on the main thread after the given amount of
+     * ticks. Delays lower than one tick are rounded up to one tick.
+     *
+     * @param runnable the task to run.
+     * @param delay    the delay, in ticks.
+     *
+     * @return a handle that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable runnable, int delay) {
+	checkNotNull(runnable);
+	delay = Math.max(1, delay);
+
+	long deadline = tick + delay;
+	Timeout timeout = new Timeout(runnable, deadline, (delay - 1) / WHEEL_SIZE);
+	wheel[(int) (deadline & WHEEL_MASK)].add(timeout);
+	return timeout;
+    }
+
+    public long currentTick() {
+	return tick;
+    }
+
+    /**
+     * Takes one step from the budget of the current tick, shared by every
+     * session. Steps ran outside of the scheduler, such as on a selected
+     * choice, count towards the current tick as well.
+     *
+     * @return {@code true} if the step may run, {@code false} if the budget
+     *         of this tick is used up and the session must wait for the next
+     *         one.
+     */
+    boolean takeStep() {
+	if (stepsLeft <= 0) {
+	    return false;
+	}
+	--stepsLeft;
+	return true;
+    }
+
+    @Override
+    public void run() {
+	++tick;
+	stepsLeft = stepsPerTick;
+
+	// Expired timeouts are detached before any of them is ran, so that
+	// tasks can freely schedule or cancel other timeouts.
+	List<Timeout> expired = wheel[(int) (tick & WHEEL_MASK)].expire();
+	for (Timeout timeout : expired) {
+	    if (timeout.state != Timeout.DUE) {
+		continue;
+	    }
+
+	    timeout.state = Timeout.EXPIRED;
+	    try {
+		timeout.runnable.run();
+	    } catch (Throwable t) {
+		Main.get().getLogger().log(Level.SEVERE, "Exception while running dialogue task", t);
+	    }
+	}
+    }
+
+    private static final class Bucket {
+
+	private Timeout head;
+	private Timeout tail;
+
+	void add(Timeout timeout) {
+	    timeout.bucket = this;
+	    if (tail == null) {
+		head = tail = timeout;
+	    } else {
+		tail.next = timeout;
+		timeout.prev = tail;
+		tail = timeout;
+	    }
+	}
+
+	void remove(Timeout timeout) {
+	    if (timeout.prev == null) {
+		head = timeout.next;
+	    } else {
+		timeout.prev.next = timeout.next;
+	    }
+
+	    if (timeout.next == null) {
+		tail = timeout.prev;
+	    } else {
+		timeout.next.prev = timeout.prev;
+	    }
+
+	    timeout.prev = null;
+	    timeout.next = null;
+	    timeout.bucket = null;
+	}
+
+	List<Timeout> expire() {
+	    List<Timeout> expired = null;
+
+	    Timeout timeout = head;
+	    while (timeout != null) {
+		Timeout next = timeout.next;
+		if (timeout.remainingRounds <= 0) {
+		    remove(timeout);
+		    timeout.state = Timeout.DUE;
+		    if (expired == null) {
+			expired = new ArrayList<>(4);
+		    }
+		    expired.add(timeout);
+		} else {
+		    --timeout.remainingRounds;
+		}
+		timeout = next;
+	    }
+
+	    return (expired == null) ? Collections.<Timeout>emptyList() : expired;
+	}
+
+	void clear() {
+	    Timeout timeout = head;
+	    while (timeout != null) {
+		Timeout next = timeout.next;
+		timeout.state = Timeout.CANCELLED;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = null;
+		timeout = next;
+	    }
+	    head = tail = null;
+	}
+    }
+
+    /**
+     * A handle on a task scheduled through the {@code DialogueScheduler}.
+     */
+    public static final class Timeout {
+
+	private static final int PENDING = 0;
+	private static final int DUE = 1;
+	private static final int EXPIRED = 2;
+	private static final int CANCELLED = 3;
+
+	private final Runnable runnable;
+	private final long deadline;
+	private long remainingRounds;
+	private int state;
+
+	private Bucket bucket;
+	private Timeout prev;
+	private Timeout next;
+
+	private Timeout(Runnable runnable, long deadline, long remainingRounds) {
+	    this.runnable = runnable;
+	    this.deadline = deadline;
+	    this.remainingRounds = remainingRounds;
+	}
+
+	/**
+	 * Cancels this timeout. Has no effect if it already ran or was
+	 * already cancelled.
+	 *
+	 * @return {@code true} if the timeout had not ran yet and got
+	 *         cancelled.
+	 */
+	public boolean cancel() {
+	    if (state != PENDING && state != DUE) {
+		return false;
+	    }
+
+	    state = CANCELLED;
+	    if (bucket != null) {
+		bucket.remove(this);
+	    }
+	    return true;
+	}
+
+	public boolean isCancelled() {
+	    return state == CANCELLED;
+	}
+
+	public boolean isExpired() {
+	    return state == EXPIRED;
+	}
+
+	/**
+	 * @return the tick at which this timeout expires, as given by
+	 *         {@link DialogueScheduler#currentTick()}.
+	 */
+	public long deadline() {
+	    return deadline;
+	}
+    }
+}
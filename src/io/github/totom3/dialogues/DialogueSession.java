@@ -4,14 +4,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import io.github.totom3.commons.chat.ChatClickAction;
 import io.github.totom3.commons.chat.ChatClickEvent;
 import io.github.totom3.commons.chat.ChatComponent;
+import io.github.totom3.commons.chat.ChatMessageSender;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitTask;
 
 /**
  *
@@ -36,6 +37,19 @@ public class DialogueSession implements Runnable {
      */
     private static final int POST_MESSAGE = 0x4;
 
+    /**
+     * Maximum number of consecutive zero-delay steps a session may execute in
+     * a single tick before yielding to the next one. Sessions also share the
+     * per-tick budget of the {@link DialogueScheduler}.
+     */
+    static final int MAX_STEPS_PER_TICK = 256;
+
+    /**
+     * Command ran by the client when a choice is clicked, followed by the ID
+     * of the choice.
+     */
+    static final String SELECT_COMMAND = "/dlgs select ";
+
     /**
      * The dialogue of this session.
      */
@@ -64,9 +78,15 @@ public class DialogueSession implements Runnable {
     private boolean acceptsInput;
     private boolean timeoutScheduled;
 
-    private BukkitTask waitingTask;
+    private DialogueScheduler.Timeout waitingTask;
     private Player lastSender;
 
+    /**
+     * Identifies this session in the {@link SessionJournal}; kept when the
+     * session is resumed.
+     */
+    private UUID id = UUID.randomUUID();
+
     public DialogueSession(Dialogue dialogue, Collection<Player> participants) {
 	this(dialogue, participants, new DefaultMessageFormatter());
     }
@@ -105,27 +125,49 @@ public class DialogueSession implements Runnable {
 
     @Override
     public void run() {
-	if (currentPrompt == null) {
-	    terminate();
-	    return;
+	// Zero-delay steps are processed in a loop rather than by recursion,
+	// so that long chains (or cycles) of prompts cannot overflow the
+	// stack. Once its own budget or the budget of the tick is used up,
+	// the session yields and resumes on the next tick.
+	for (int steps = 0;; ++steps) {
+	    if (currentPrompt == null) {
+		terminate();
+		return;
+	    }
+
+	    if (steps == MAX_STEPS_PER_TICK || !DialogueScheduler.get().takeStep()) {
+		rescheduleIn(1);
+		SessionJournal.get().checkpoint(this);
+		return;
+	    }
+
+	    if (!step()) {
+		SessionJournal.get().checkpoint(this);
+		return;
+	    }
 	}
+    }
 
+    /**
+     * Executes the current action.
+     *
+     * @return {@code true} if the next action must be executed immediately,
+     *         {@code false} if the session is now waiting for a delay or for
+     *         input.
+     */
+    private boolean step() {
 	if (timeoutScheduled) {
 	    timeoutScheduled = false;
-	    handlePostTimeout();
-	    return;
+	    return handlePostTimeout();
 	}
 
 	switch (action) {
 	    case ACCEPT_PROMPT:
-		handleAcceptPrompt();
-		break;
+		return handleAcceptPrompt();
 	    case SEND_MESSAGE:
-		handleSendMessage();
-		break;
+		return handleSendMessage();
 	    case POST_MESSAGE:
-		handlePostMessage();
-		break;
+		return handlePostMessage();
 	    default:
 		throw new AssertionError("unexpected action " + action);
 	}
@@ -186,74 +228,76 @@ public class DialogueSession implements Runnable {
 	    broadcastMessage(msg);
 	}
 
-	jumpToPrompt(dialogue.getPrompt(inputChoice.nextPromptID()));
+	jumpToPrompt(inputChoice.nextPrompt());
 	action = ACCEPT_PROMPT;
 	run();
     }
 
-    private void handleAcceptPrompt() {
+    private boolean handleAcceptPrompt() {
+	action = SEND_MESSAGE;
+
 	// immediately send message if no initial delay
 	if (!currentPrompt.hasInitialDelay()) {
-	    action = SEND_MESSAGE;
-	    run();
-	    return;
+	    return true;
 	}
-	action = SEND_MESSAGE;
+
 	rescheduleIn(currentPrompt.initialDelay());
+	return false;
     }
 
-    private void handleSendMessage() {
+    private boolean handleSendMessage() {
 	if (currentPrompt.hasMessage()) {
 	    String msg = formatter.formatPromptMessage(this, currentPrompt);
 	    broadcastMessage(msg);
 	}
 
+	action = POST_MESSAGE;
 	if (!currentPrompt.hasFinalDelay()) {
-	    action = POST_MESSAGE;
-	    run();
-	    return;
+	    return true;
 	}
 
-	action = POST_MESSAGE;
 	rescheduleIn(currentPrompt.finalDelay());
+	return false;
     }
 
-    private void handlePostMessage() {
+    private boolean handlePostMessage() {
 	if (!currentPrompt.requiresChoices()) {
 	    jumpToPrompt(currentPrompt.nextPrompt());
 	    action = ACCEPT_PROMPT;
-	    run();
-	    return;
-	}
-
-	List<InputChoice> choices = currentPrompt.inputChoices();
-	for (InputChoice choice : choices) {
-	    String msg = formatter.formatDisplayMessage(this, choice);
-	    if (msg != null) {
-		broadcastCommandMessage(msg, "/dlgs select " + choice.choiceID());
-	    }
+	    return true;
 	}
 
+	displayChoices();
 	if (currentPrompt.hasChoiceTimeout()) {
 	    rescheduleIn(currentPrompt.choiceTimeout());
 	    timeoutScheduled = true;
 	}
 
 	acceptsInput = true;
+	return false;
+    }
+
+    private void displayChoices() {
+	for (InputChoice choice : currentPrompt.inputChoices()) {
+	    String msg = formatter.formatDisplayMessage(this, choice);
+	    if (msg != null) {
+		broadcastCommandMessage(msg, SELECT_COMMAND + choice.choiceID());
+	    }
+	}
     }
 
-    private void handlePostTimeout() {
+    private boolean handlePostTimeout() {
 	cancelTask();
 	acceptsInput = false;
 
 	jumpToPrompt(currentPrompt.nextPrompt());
 	action = ACCEPT_PROMPT;
-	run();
+	return true;
     }
 
     private void rescheduleIn(int delay) {
 	cancelTask();
-	waitingTask = Bukkit.getScheduler().runTaskLater(Main.get(), this, delay);
+	waitingTask = DialogueScheduler.get().schedule(this, delay);
     }
 
     private void cancelTask() {
@@ -272,9 +316,7 @@ public class DialogueSession implements Runnable {
     private void broadcastCommandMessage(String msg, String command) {
 	ChatComponent comp = ChatComponent.fromPlainText(msg);
 	comp.setClickEvent(new ChatClickEvent(ChatClickAction.RUN_COMMAND, command));
-	for (Player player : participants) {
-	    comp.send(player);
-	}
+	ChatMessageSender.broadcast(comp, participants);
     }
 
     public void terminate() {
@@ -285,7 +327,21 @@ public class DialogueSession implements Runnable {
 	if (notifyManager) {
 	    DialogueSessionsManager.get().onStop(this);
 	}
-	
+
+	SessionJournal.get().end(id);
+	stop();
+    }
+
+    /**
+     * Stops this session once its last participant left, recording its
+     * progress so that it resumes when one of them joins again.
+     */
+    void suspend() {
+	SessionJournal.get().suspend(this);
+	stop();
+    }
+
+    private void stop() {
 	cancelTask();
 	acceptsInput = false;
 	timeoutScheduled = false;
@@ -293,7 +349,89 @@ public class DialogueSession implements Runnable {
 	started = false;
 	participants.clear();
 	System.out.println("Session terminated!");
-	
+    }
+
+    /**
+     * Takes a snapshot of the progress of this session.
+     *
+     * @return the snapshot, or {@code null} if this session is not running.
+     */
+    SessionCheckpoint checkpoint() {
+	if (!started || currentPrompt == null) {
+	    return null;
+	}
+
+	int remainingDelay = 0;
+	if (waitingTask != null && !waitingTask.isCancelled() && !waitingTask.isExpired()) {
+	    remainingDelay = (int) Math.max(1, waitingTask.deadline() - DialogueScheduler.get().currentTick());
+	}
+
+	List<UUID> ids = new ArrayList<>(participants.size());
+	for (Player player : participants) {
+	    ids.add(player.getUniqueId());
+	}
+
+	UUID sender = (lastSender == null) ? null : lastSender.getUniqueId();
+	return new SessionCheckpoint(id, dialogue.getName(), dialogue.sourceHash(), currentPrompt.promptID(), action, remainingDelay,
+		timeoutScheduled, acceptsInput, ids, sender, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a session from a checkpoint, where the checkpointed session left
+     * off. Choices the session was waiting for are displayed again.
+     *
+     * @param dialogue     the dialogue of the session.
+     * @param checkpoint   the checkpoint.
+     * @param participants the participants, all online.
+     *
+     * @return the resumed session.
+     *
+     * @throws IllegalArgumentException if the checkpoint does not match the
+     *                                  dialogue, for instance because it was
+     *                                  compiled again since.
+     */
+    static DialogueSession resume(Dialogue dialogue, SessionCheckpoint checkpoint, Collection<Player> participants) {
+	// Prompt IDs are row numbers: once rows are inserted or removed, the
+	// same ID may refer to another prompt
+	if (checkpoint.sourceHash() != null && !checkpoint.sourceHash().equals(dialogue.sourceHash())) {
+	    throw new IllegalArgumentException("Dialogue '" + dialogue.getName() + "' was compiled from another version of its source since");
+	}
+
+	DialoguePrompt prompt = dialogue.getPrompt(checkpoint.promptID());
+	if (prompt == null) {
+	    throw new IllegalArgumentException("Prompt " + checkpoint.promptID() + " no longer exists in dialogue '" + dialogue.getName() + "'");
+	}
+
+	int action = checkpoint.action();
+	if (action != ACCEPT_PROMPT && action != SEND_MESSAGE && action != POST_MESSAGE) {
+	    throw new IllegalArgumentException("Invalid action " + action);
+	}
+
+	if (checkpoint.acceptsInput() && !prompt.requiresChoices()) {
+	    throw new IllegalArgumentException("Prompt " + prompt.promptID() + " no longer offers choices");
+	}
+
+	DialogueSession session = new DialogueSession(dialogue, participants);
+	session.id = checkpoint.sessionID();
+	session.currentPrompt = prompt;
+	session.action = action;
+	session.acceptsInput = checkpoint.acceptsInput();
+	session.timeoutScheduled = checkpoint.timeoutScheduled();
+	session.lastSender = (checkpoint.lastSender() == null) ? null : Bukkit.getPlayer(checkpoint.lastSender());
+
+	DialogueSessionsManager.get().onStart(session);
+	session.started = true;
+	if (session.acceptsInput) {
+	    session.displayChoices();
+	}
+
+	if (checkpoint.remainingDelay() > 0) {
+	    session.rescheduleIn(checkpoint.remainingDelay());
+	    SessionJournal.get().checkpoint(session);
+	} else if (!session.acceptsInput) {
+	    session.run();
+	}
+	return session;
     }
 
     /**
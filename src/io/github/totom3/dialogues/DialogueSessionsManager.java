@@ -1,17 +1,27 @@
 package io.github.totom3.dialogues;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerKickEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 /**
+ * Keeps track of the session of every player, by UUID. Sessions are started
+ * and stopped on the main thread, but can be looked up from any thread
+ * without locking; the sessions themselves must still only be used from the
+ * main thread.
  *
  * @author Totom3
  */
@@ -19,32 +29,53 @@ public class DialogueSessionsManager implements Listener {
 
     private static final DialogueSessionsManager instance = new DialogueSessionsManager();
 
+    private static final String SELECT_COMMAND_LONG = "/dialogues select ";
+
     public static DialogueSessionsManager get() {
 	return instance;
     }
 
-    private final Map<Player, DialogueSession> sessions = new WeakHashMap<>();
+    /**
+     * Entries are removed when a session stops and when a player quits,
+     * rather than when the {@code Player} is garbage collected.
+     */
+    private final ConcurrentMap<UUID, DialogueSession> sessions = new ConcurrentHashMap<>();
 
     void init() {
 	Bukkit.getPluginManager().registerEvents(this, Main.get());
     }
 
-    public Map<Player, DialogueSession> getSessions() {
-	return sessions;
+    void shutdown() {
+	sessions.clear();
+    }
+
+    /**
+     * @return an unmodifiable view of the sessions by player UUID.
+     */
+    public Map<UUID, DialogueSession> getSessions() {
+	return Collections.unmodifiableMap(sessions);
     }
 
     public DialogueSession getSessionOf(Player player) {
-	return sessions.get(player);
+	return sessions.get(player.getUniqueId());
+    }
+
+    public DialogueSession getSessionOf(UUID playerID) {
+	return sessions.get(playerID);
     }
 
     public boolean hasSession(Player player) {
-	return sessions.get(player) != null;
+	return sessions.containsKey(player.getUniqueId());
+    }
+
+    public boolean hasSession(UUID playerID) {
+	return sessions.containsKey(playerID);
     }
 
     void onStart(DialogueSession session) {
 	Collection<Player> participants = new HashSet<>(session.getParticipants());
 	for (Player player : participants) {
-	    DialogueSession oldSession = sessions.put(player, session);
+	    DialogueSession oldSession = sessions.put(player.getUniqueId(), session);
 	    if (oldSession != null && oldSession != session && !oldSession.removeParticipant(player)) {
 		oldSession.terminate(false);
 	    }
@@ -55,7 +86,7 @@ public class DialogueSessionsManager implements Listener {
 	System.out.println("Receiving stop signal. Removing participants.");
 	Collection<Player> participants = session.getParticipants();
 	for (Player player : participants) {
-	    sessions.remove(player);
+	    sessions.remove(player.getUniqueId(), session);
 	}
 	System.out.println("Sessions=" + sessions);
     }
@@ -70,10 +101,73 @@ public class DialogueSessionsManager implements Listener {
 	onQuit(event.getPlayer());
     }
 
+    /**
+     * Routes clicks on choices straight to the session of the player, before
+     * Bukkit looks the command up and dispatches it. Selections that cannot
+     * be parsed are left to {@link DialoguesCommandExecutor}.
+     */
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    private void on(PlayerCommandPreprocessEvent event) {
+	String message = event.getMessage();
+	int start;
+	if (message.regionMatches(true, 0, DialogueSession.SELECT_COMMAND, 0, DialogueSession.SELECT_COMMAND.length())) {
+	    start = DialogueSession.SELECT_COMMAND.length();
+	} else if (message.regionMatches(true, 0, SELECT_COMMAND_LONG, 0, SELECT_COMMAND_LONG.length())) {
+	    start = SELECT_COMMAND_LONG.length();
+	} else {
+	    return;
+	}
+
+	int choice = parseChoice(message, start);
+	if (choice <= 0) {
+	    return;
+	}
+
+	event.setCancelled(true);
+	Player player = event.getPlayer();
+	DialogueSession session = sessions.get(player.getUniqueId());
+	if (session != null) {
+	    session.acceptChoice(player, choice);
+	}
+    }
+
+    /**
+     * @return the choice ID ending the message, or {@code -1} if the rest of
+     *         the message is not a number.
+     */
+    private static int parseChoice(String message, int start) {
+	int length = message.length();
+	if (start == length || length - start > 9) {
+	    return -1;
+	}
+
+	int choice = 0;
+	for (int i = start; i < length; ++i) {
+	    char c = message.charAt(i);
+	    if (c < '0' || c > '9') {
+		return -1;
+	    }
+	    choice = choice * 10 + (c - '0');
+	}
+	return choice;
+    }
+
+    @EventHandler
+    private void on(PlayerJoinEvent event) {
+	SessionJournal.get().resume(event.getPlayer());
+    }
+
     private void onQuit(Player player) {
-	DialogueSession session = sessions.remove(player);
-	if (session != null && !session.removeParticipant(player)) {
-	    session.terminate(false);
+	DialogueSession session = sessions.remove(player.getUniqueId());
+	if (session == null) {
+	    return;
+	}
+
+	// The last participant is kept in the checkpoint, to resume on join
+	if (session.getParticipants().size() <= 1) {
+	    session.suspend();
+	} else {
+	    session.removeParticipant(player);
 	}
     }
 }
@@ -0,0 +1,237 @@
+package io.github.totom3.dialogues;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the data folder for changes to dialogue sources, and compiles them
+ * again once they stopped changing for a while. Loaded dialogues are replaced
+ * in the cache by their new version; running sessions keep the instance they
+ * started with. Also keeps the index of compiled dialogues of the
+ * {@link DialoguesCache} up to date.
+ *
+ * @author Totom3
+ */
+public class DialogueWatcher implements Runnable {
+
+    private static final DialogueWatcher instance = new DialogueWatcher();
+
+    public static DialogueWatcher get() {
+	return instance;
+    }
+
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * Changed dialogues waiting to be compiled, with the time of their last
+     * change. Only accessed by the watcher thread.
+     */
+    private final Map<String, Long> pending = new HashMap<>();
+
+    private Path base;
+    private WatchService service;
+    private Thread thread;
+    private long debounceMillis;
+
+    private DialogueWatcher() {
+    }
+
+    void init() {
+	if (thread != null) {
+	    throw new IllegalStateException("already initialized");
+	}
+
+	if (!Main.get().getConfig().getBoolean("watcher.enabled", false)) {
+	    return;
+	}
+
+	debounceMillis = Math.max(0, Main.get().getConfig().getLong("watcher.debounce-ms", 500));
+	base = DialoguesCache.BASE_FILE.toPath();
+	try {
+	    service = FileSystems.getDefault().newWatchService();
+	    registerAll(service, base, false);
+	} catch (IOException ex) {
+	    Main.get().getLogger().log(Level.SEVERE, "Could not watch dialogues folder; hot reload is disabled", ex);
+	    shutdown();
+	    return;
+	}
+
+	thread = new Thread(this, "Dialogues Watcher");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    void shutdown() {
+	DialoguesCache.get().dropIndex();
+	if (service != null) {
+	    try {
+		service.close();
+	    } catch (IOException ex) {
+		Main.get().getLogger().log(Level.WARNING, "Could not close dialogues watcher", ex);
+	    }
+	    service = null;
+	}
+	thread = null;
+    }
+
+    public boolean isRunning() {
+	return thread != null;
+    }
+
+    @Override
+    public void run() {
+	WatchService watchService = service;
+	if (watchService == null) {
+	    return;
+	}
+
+	// Changes made while indexing are queued, and applied right after
+	refreshIndex();
+	try {
+	    while (true) {
+		WatchKey key = pending.isEmpty()
+			? watchService.take()
+			: watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+
+		if (key != null) {
+		    processEvents(watchService, key);
+		}
+		compileSettled();
+	    }
+	} catch (InterruptedException | ClosedWatchServiceException ex) {
+	    // Shutting down
+	}
+    }
+
+    private void processEvents(WatchService watchService, WatchKey key) {
+	Path directory = directories.get(key);
+	for (WatchEvent<?> event : key.pollEvents()) {
+	    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+		refreshIndex();
+		continue;
+	    }
+
+	    if (directory == null) {
+		continue;
+	    }
+
+	    Path path = directory.resolve((Path) event.context());
+	    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+		// Files may have been created before the directory was watched
+		try {
+		    registerAll(watchService, path, true);
+		} catch (IOException ex) {
+		    Main.get().getLogger().log(Level.WARNING, "Could not watch directory " + path, ex);
+		}
+		continue;
+	    }
+
+	    String compiledName = compiledName(path);
+	    if (compiledName != null) {
+		DialoguesCache.get().indexChanged(compiledName, event.kind() != StandardWatchEventKinds.ENTRY_DELETE);
+	    } else if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+		changed(path);
+	    }
+	}
+
+	if (!key.reset()) {
+	    directories.remove(key);
+	}
+    }
+
+    /**
+     * @return the name of the dialogue compiled to the given file, or
+     *         {@code null} if it is not a {@code .dlg} file.
+     */
+    private String compiledName(Path path) {
+	if (!path.getFileName().toString().endsWith(".dlg")) {
+	    return null;
+	}
+
+	String name = base.relativize(path).toString();
+	return name.substring(0, name.length() - 4).replace(File.separatorChar, '.');
+    }
+
+    private void refreshIndex() {
+	try {
+	    DialoguesCache.get().refreshIndex();
+	} catch (IOException ex) {
+	    Main.get().getLogger().log(Level.WARNING, "Could not index compiled dialogues", ex);
+	    DialoguesCache.get().dropIndex();
+	}
+    }
+
+    private void changed(Path path) {
+	if (DialogueCompiler.sourceExtension(path) != null) {
+	    pending.put(DialogueCompiler.toName(base.relativize(path)), System.currentTimeMillis());
+	}
+    }
+
+    private void compileSettled() {
+	long now = System.currentTimeMillis();
+	for (Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+	    Map.Entry<String, Long> entry = it.next();
+	    if (now - entry.getValue() < debounceMillis) {
+		continue;
+	    }
+
+	    it.remove();
+	    String name = entry.getKey();
+	    DialogueCompiler.get().compile(name).whenComplete((dialogues, ex) -> {
+		Logger logger = Main.get().getLogger();
+		if (ex != null) {
+		    Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+		    logger.log(Level.SEVERE, "Could not reload dialogue '" + name + "'", cause);
+		} else if (!dialogues.isEmpty()) {
+		    logger.info("Reloaded " + dialogues.size() + " dialogue(s) from '" + name + "'");
+		}
+	    });
+	}
+    }
+
+    private void registerAll(WatchService watchService, Path root, boolean pendFiles) throws IOException {
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+	    @Override
+	    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+		if (pendFiles) {
+		    String compiledName = compiledName(file);
+		    if (compiledName != null) {
+			DialoguesCache.get().indexChanged(compiledName, true);
+		    } else {
+			changed(file);
+		    }
+		}
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+		WatchKey key = dir.register(watchService,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY,
+			StandardWatchEventKinds.ENTRY_DELETE);
+		directories.put(key, dir);
+		return FileVisitResult.CONTINUE;
+	    }
+	});
+    }
+}
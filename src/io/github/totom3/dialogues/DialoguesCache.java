@@ -1,14 +1,39 @@
 package io.github.totom3.dialogues;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.github.totom3.commons.binary.SerializingException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import jxl.read.biff.BiffException;
 
 /**
@@ -19,6 +44,19 @@ public class DialoguesCache {
 
     public static final File BASE_FILE = Main.get().getDataFolder();
 
+    /**
+     * Default maximum estimated size of all cached dialogues, in kilobytes.
+     */
+    private static final long DEFAULT_MAXIMUM_WEIGHT_KB = 64 * 1024;
+
+    /**
+     * Default time during which a dialogue that could not be found is known
+     * to be missing, in milliseconds.
+     */
+    private static final long DEFAULT_MISSING_TTL_MS = 5000;
+
+    private static final int IO_THREADS = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
     private static final DialoguesCache instance = new DialoguesCache();
 
     static {
@@ -37,6 +75,33 @@ public class DialoguesCache {
 	return new File(BASE_FILE, name);
     }
 
+    /**
+     * Extensions of the files dialogues can be compiled from, by order of
+     * precedence.
+     */
+    public static final List<String> SOURCE_EXTENSIONS = ImmutableList.of(".xls", DelimitedDialogueLoader.CSV_EXTENSION, DelimitedDialogueLoader.TSV_EXTENSION);
+
+    public static File getSourceFile(String name, String extension) {
+	name = name.replace('.', File.separatorChar);
+	name += extension;
+	return new File(BASE_FILE, name);
+    }
+
+    /**
+     * @return the first existing source file of a dialogue, following the
+     *         order of {@link #SOURCE_EXTENSIONS}; or the Excel file if none
+     *         exists.
+     */
+    public static File getSourceFile(String name) {
+	for (String extension : SOURCE_EXTENSIONS) {
+	    File file = getSourceFile(name, extension);
+	    if (file.isFile()) {
+		return file;
+	    }
+	}
+	return getExcelFile(name);
+    }
+
     public static File getBinaryFile(String name) {
 	name = name.replace('.', File.separatorChar);
 	name += ".dlg";
@@ -45,12 +110,79 @@ public class DialoguesCache {
 
     private final LoadingCache<String, Dialogue> dialogues;
     private final ExcelDialogueLoader excelLoader = new ExcelDialogueLoader();
+    private final DelimitedDialogueLoader delimitedLoader = new DelimitedDialogueLoader();
     private final BinaryDialogueLoader binaryLoader = new BinaryDialogueLoader();
 
+    /**
+     * Loads in progress, so that concurrent requests for the same dialogue
+     * share a single load.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Dialogue>> pendingLoads = new ConcurrentHashMap<>();
+    private final ExecutorService ioPool;
+    private final long maximumWeight;
+
+    /**
+     * Dialogues recently found to be missing, so that looking them up again
+     * does not touch the filesystem until the entry expires.
+     */
+    private final Cache<String, Boolean> missing;
+
+    /**
+     * Names of every {@code .dlg} file under the data folder, kept up to date
+     * by the {@link DialogueWatcher}. {@code null} while the watcher is not
+     * running, in which case only {@link #missing} is used.
+     */
+    private volatile Set<String> index;
+
+    /**
+     * The pack currently being built, if any. Guarded by {@code this}.
+     */
+    private CompletableFuture<Integer> packing;
+
     public DialoguesCache() {
+	maximumWeight = Math.max(0, Main.get().getConfig().getLong("cache.maximum-weight-kb", DEFAULT_MAXIMUM_WEIGHT_KB)) * 1024;
 	dialogues = CacheBuilder.<String, Dialogue>newBuilder()
-		.softValues()
+		.maximumWeight(maximumWeight)
+		// Guava splits the maximum weight evenly between segments, so
+		// with several segments a large dialogue could be evicted while
+		// the cache is far from full
+		.concurrencyLevel(1)
+		.weigher((String name, Dialogue dialogue) -> dialogue.estimatedSize())
+		.recordStats()
 		.build(binaryLoader);
+
+	long missingTtl = Math.max(0, Main.get().getConfig().getLong("cache.missing-ttl-ms", DEFAULT_MISSING_TTL_MS));
+	missing = CacheBuilder.newBuilder()
+		.expireAfterWrite(missingTtl, TimeUnit.MILLISECONDS)
+		.maximumSize(10_000)
+		.build();
+
+	binaryLoader.setMemoryMapped(Main.get().getConfig().getBoolean("loader.memory-mapped", false));
+	binaryLoader.setLazyThreshold(Main.get().getConfig().getInt("loader.lazy-prompt-threshold", 512));
+	binaryLoader.setPromptCacheSize(Math.max(1, Main.get().getConfig().getInt("loader.prompt-cache-size", 256)));
+
+	File packFile = new File(BASE_FILE, DialoguePack.FILE_NAME);
+	if (Main.get().getConfig().getBoolean("loader.pack", true) && packFile.isFile()) {
+	    try {
+		binaryLoader.setPack(DialoguePack.open(packFile));
+	    } catch (IOException ex) {
+		Main.get().getLogger().log(Level.SEVERE, "Could not open dialogue pack; loading .dlg files only", ex);
+	    }
+	}
+
+	ioPool = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactoryBuilder()
+		.setNameFormat("Dialogues I/O #%d")
+		.setDaemon(true)
+		.build());
+    }
+
+    void shutdown() {
+	ioPool.shutdownNow();
+	binaryLoader.shutdown();
+    }
+
+    ExecutorService ioPool() {
+	return ioPool;
     }
 
     public Map<String, Dialogue> getDialogues() {
@@ -62,7 +194,258 @@ public class DialoguesCache {
     }
 
     public Dialogue getOrLoad(String name) throws ExecutionException {
-	return dialogues.get(check(name));
+	Dialogue dialogue = dialogues.getIfPresent(check(name));
+	if (dialogue != null) {
+	    return dialogue;
+	}
+
+	if (isKnownMissing(name)) {
+	    throw new ExecutionException(new FileNotFoundException("Missing binary file for dialogue '" + name + "'"));
+	}
+
+	try {
+	    return dialogues.get(name);
+	} catch (ExecutionException ex) {
+	    if (ex.getCause() instanceof FileNotFoundException) {
+		missing.put(name, Boolean.TRUE);
+	    }
+	    throw ex;
+	}
+    }
+
+    /**
+     * Checks whether a dialogue that is not loaded is known not to exist,
+     * without touching the filesystem.
+     */
+    private boolean isKnownMissing(String name) {
+	if (missing.getIfPresent(name) != null) {
+	    return true;
+	}
+
+	Set<String> currentIndex = index;
+	if (currentIndex == null || currentIndex.contains(name)) {
+	    return false;
+	}
+
+	DialoguePack currentPack = binaryLoader.getPack();
+	return currentPack == null || !currentPack.contains(name);
+    }
+
+    /**
+     * Rebuilds the index of compiled dialogues from the data folder. Called
+     * by the watcher once it watches the folder, and whenever it may have
+     * missed changes.
+     */
+    void refreshIndex() throws IOException {
+	Set<String> newIndex = ConcurrentHashMap.newKeySet();
+	newIndex.addAll(findCompiledFiles().keySet());
+	index = newIndex;
+	missing.invalidateAll();
+    }
+
+    /**
+     * Stops using the index of compiled dialogues, once the watcher no longer
+     * keeps it up to date.
+     */
+    void dropIndex() {
+	index = null;
+    }
+
+    /**
+     * Records that the {@code .dlg} file of a dialogue was created or
+     * deleted.
+     */
+    void indexChanged(String name, boolean exists) {
+	Set<String> currentIndex = index;
+	if (exists) {
+	    if (currentIndex != null) {
+		currentIndex.add(name);
+	    }
+	    missing.invalidate(name);
+	} else if (currentIndex != null) {
+	    currentIndex.remove(name);
+	}
+    }
+
+    /**
+     * Returns a future of the dialogue with the given name, loading it on an
+     * I/O worker thread if it is not already in the cache. Concurrent calls
+     * for the same name share the same load. If the load fails, the future
+     * is completed with the cause of the failure (for instance a
+     * {@code FileNotFoundException}).
+     *
+     * @param name the name of the dialogue.
+     *
+     * @return a future of the dialogue.
+     */
+    public CompletableFuture<Dialogue> getOrLoadAsync(String name) {
+	Dialogue dialogue = dialogues.getIfPresent(check(name));
+	if (dialogue != null) {
+	    return CompletableFuture.completedFuture(dialogue);
+	}
+
+	CompletableFuture<Dialogue> future = pendingLoads.get(name);
+	if (future != null) {
+	    return future;
+	}
+
+	CompletableFuture<Dialogue> newFuture = new CompletableFuture<>();
+	future = pendingLoads.putIfAbsent(name, newFuture);
+	if (future != null) {
+	    return future;
+	}
+
+	ioPool.execute(() -> {
+	    try {
+		newFuture.complete(getOrLoad(name));
+	    } catch (ExecutionException | UncheckedExecutionException ex) {
+		newFuture.completeExceptionally(ex.getCause());
+	    } catch (Throwable t) {
+		newFuture.completeExceptionally(t);
+	    } finally {
+		pendingLoads.remove(name, newFuture);
+	    }
+	});
+	return newFuture;
+    }
+
+    /**
+     * Packs every compiled dialogue under the data folder into a single
+     * {@link DialoguePack}, then loads dialogues from it. Runs on an I/O
+     * worker thread. Only one pack is built at a time: calling this method
+     * while a pack is being built returns the future of that pack.
+     *
+     * @return a future of the number of packed dialogues.
+     */
+    public synchronized CompletableFuture<Integer> pack() {
+	if (packing != null && !packing.isDone()) {
+	    return packing;
+	}
+
+	packing = CompletableFuture.supplyAsync(() -> {
+	    try {
+		SortedMap<String, File> files = findCompiledFiles();
+		File packFile = new File(BASE_FILE, DialoguePack.FILE_NAME);
+		DialoguePack.write(packFile, files);
+		binaryLoader.setPack(DialoguePack.open(packFile));
+		missing.invalidateAll();
+		return files.size();
+	    } catch (IOException ex) {
+		throw new UncheckedIOException(ex);
+	    }
+	}, ioPool);
+	return packing;
+    }
+
+    /**
+     * Loads every compiled dialogue whose name matches one of the patterns
+     * of the {@code preload} configuration list, in parallel on the I/O
+     * worker threads. A {@code *} in a pattern matches any part of a name
+     * segment, and {@code **} matches any number of segments. The outcome is
+     * logged once every dialogue is loaded.
+     *
+     * @return a future completed once every dialogue is loaded or failed to.
+     */
+    public CompletableFuture<Void> preload() {
+	List<String> patterns = Main.get().getConfig().getStringList("preload");
+	if (patterns.isEmpty()) {
+	    return CompletableFuture.completedFuture(null);
+	}
+
+	long start = System.nanoTime();
+	Logger logger = Main.get().getLogger();
+	return CompletableFuture.supplyAsync(() -> {
+	    Pattern pattern = Pattern.compile(globsToRegex(patterns));
+	    Set<String> names = new TreeSet<>();
+	    try {
+		names.addAll(findCompiledFiles().keySet());
+	    } catch (IOException ex) {
+		throw new UncheckedIOException(ex);
+	    }
+
+	    DialoguePack currentPack = binaryLoader.getPack();
+	    if (currentPack != null) {
+		names.addAll(currentPack.names());
+	    }
+
+	    names.removeIf((name) -> !pattern.matcher(name).matches());
+	    return names;
+	}, ioPool).thenCompose((names) -> {
+	    List<CompletableFuture<Boolean>> futures = new ArrayList<>(names.size());
+	    for (String name : names) {
+		futures.add(getOrLoadAsync(name).handle((dialogue, ex) -> {
+		    if (ex != null) {
+			logger.log(Level.WARNING, "Could not preload dialogue '" + name + "'", ex);
+		    }
+		    return ex == null;
+		}));
+	    }
+
+	    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenRun(() -> {
+		int loaded = 0;
+		for (CompletableFuture<Boolean> future : futures) {
+		    if (future.join()) {
+			++loaded;
+		    }
+		}
+		logger.info("Preloaded " + loaded + " of " + names.size() + " dialogues in " + ((System.nanoTime() - start) / 1_000_000)
+			+ " ms; cache holds an estimated " + (weight() / 1024) + " KB");
+	    });
+	}).exceptionally((ex) -> {
+	    logger.log(Level.SEVERE, "Could not preload dialogues", ex);
+	    return null;
+	});
+    }
+
+    private static String globsToRegex(List<String> globs) {
+	StringBuilder regex = new StringBuilder();
+	for (String glob : globs) {
+	    if (regex.length() != 0) {
+		regex.append('|');
+	    }
+
+	    regex.append("(?:");
+	    int length = glob.length();
+	    int literalStart = 0;
+	    for (int i = 0; i < length; ++i) {
+		if (glob.charAt(i) != '*') {
+		    continue;
+		}
+
+		if (i > literalStart) {
+		    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+		}
+
+		if (i + 1 < length && glob.charAt(i + 1) == '*') {
+		    regex.append(".*");
+		    ++i;
+		} else {
+		    regex.append("[^.]*");
+		}
+		literalStart = i + 1;
+	    }
+	    if (literalStart < length) {
+		regex.append(Pattern.quote(glob.substring(literalStart)));
+	    }
+	    regex.append(')');
+	}
+	return regex.toString();
+    }
+
+    /**
+     * @return every {@code .dlg} file under the data folder, by dialogue name.
+     */
+    private SortedMap<String, File> findCompiledFiles() throws IOException {
+	Path base = BASE_FILE.toPath();
+	SortedMap<String, File> files = new TreeMap<>();
+	try (Stream<Path> paths = Files.walk(base)) {
+	    paths.filter((path) -> path.getFileName().toString().endsWith(".dlg") && Files.isRegularFile(path)).forEach((path) -> {
+		String name = base.relativize(path).toString();
+		name = name.substring(0, name.length() - 4).replace(File.separatorChar, '.');
+		files.put(name, path.toFile());
+	    });
+	}
+	return files;
     }
 
     public Dialogue unload(String name) {
@@ -81,27 +464,160 @@ public class DialoguesCache {
     }
 
     public Dialogue loadFromExcel(String name) throws ExecutionException {
-	Dialogue dialogue;
+	Dialogue dialogue = compileFromExcel(name);
+	put(dialogue);
+	return dialogue;
+    }
+
+    /**
+     * Loads a dialogue from its source file, whichever format it is in, and
+     * caches it.
+     */
+    public Dialogue loadFromSource(String name) throws ExecutionException {
+	Dialogue dialogue = compileFromSource(name);
+	put(dialogue);
+	return dialogue;
+    }
+
+    /**
+     * Loads a dialogue from its Excel file without caching it. Safe to call
+     * from any thread.
+     */
+    public Dialogue compileFromExcel(String name) throws ExecutionException {
 	try {
-	    dialogue = excelLoader.load(name);
+	    return excelLoader.load(check(name));
 	} catch (IOException | BiffException ex) {
 	    throw new ExecutionException(ex);
 	}
+    }
 
-	dialogues.put(name, dialogue);
-	return dialogue;
+    /**
+     * Loads a dialogue from its source file, whichever format it is in,
+     * without caching it. Safe to call from any thread.
+     *
+     * @see #getSourceFile(String)
+     */
+    public Dialogue compileFromSource(String name) throws ExecutionException {
+	if (getExcelFile(check(name)).isFile()) {
+	    return compileFromExcel(name);
+	}
+
+	try {
+	    return delimitedLoader.load(name);
+	} catch (FileNotFoundException ex) {
+	    throw new ExecutionException(new FileNotFoundException("Missing source file for dialogue '" + name + "'"));
+	} catch (IOException ex) {
+	    throw new ExecutionException(ex);
+	}
+    }
+
+    /**
+     * Loads every dialogue of a source file without caching them. Excel
+     * workbooks give one dialogue per sheet; see
+     * {@link ExcelDialogueLoader#loadAll(String, Executor)}. Safe to call
+     * from any thread.
+     *
+     * @param name     the name of the source.
+     * @param executor the executor parsing sheets concurrently.
+     */
+    public List<Dialogue> compileAllFromSource(String name, Executor executor) throws ExecutionException {
+	if (!getExcelFile(check(name)).isFile()) {
+	    return Collections.singletonList(compileFromSource(name));
+	}
+
+	try {
+	    return excelLoader.loadAll(name, executor);
+	} catch (IOException | BiffException ex) {
+	    throw new ExecutionException(ex);
+	}
+    }
+
+    /**
+     * Caches a dialogue, replacing any previous version.
+     */
+    public void put(Dialogue dialogue) {
+	dialogues.put(dialogue.getName(), dialogue);
+	missing.invalidate(dialogue.getName());
+    }
+
+    /**
+     * Replaces the cached dialogue of the same name, if there is one.
+     *
+     * @return {@code true} if a dialogue was replaced.
+     */
+    public boolean replaceIfLoaded(Dialogue dialogue) {
+	return dialogues.asMap().replace(dialogue.getName(), dialogue) != null;
     }
 
     public void saveToBinary(Dialogue dialogue) throws IOException {
+	saveToBinary(dialogue, null);
+    }
+
+    /**
+     * Saves a dialogue, recording the metadata of its source so that
+     * compiling it again can be skipped while the source is unchanged.
+     */
+    public void saveToBinary(Dialogue dialogue, DialogueMetadata metadata) throws IOException {
 	if (dialogue == null) {
 	    throw new NullPointerException("Cannot save null dialogue");
 	}
 
 	try {
-	    binaryLoader.save(dialogue);
+	    binaryLoader.save(dialogue, metadata);
 	} catch (IOException ex) {
 	    throw new SerializingException("Could not save dialogue '" + dialogue.getName() + "'", ex);
 	}
+	indexChanged(dialogue.getName(), true);
+    }
+
+    /**
+     * Saves a dialogue on the background writer thread.
+     *
+     * @return a future completed once the dialogue is on disk, or with a
+     *         {@code SerializingException} if it could not be saved.
+     *
+     * @see #saveToBinary(Dialogue, DialogueMetadata)
+     */
+    public CompletableFuture<Void> saveToBinaryAsync(Dialogue dialogue, DialogueMetadata metadata) {
+	if (dialogue == null) {
+	    throw new NullPointerException("Cannot save null dialogue");
+	}
+
+	CompletableFuture<Void> future = new CompletableFuture<>();
+	binaryLoader.saveAsync(dialogue, metadata).whenComplete((v, ex) -> {
+	    if (ex == null) {
+		indexChanged(dialogue.getName(), true);
+		future.complete(null);
+	    } else {
+		future.completeExceptionally(new SerializingException("Could not save dialogue '" + dialogue.getName() + "'", ex));
+	    }
+	});
+	return future;
+    }
+
+    /**
+     * Deletes the {@code .dlg} file of a dialogue, and removes it from the
+     * cache and from the open pack.
+     *
+     * @return {@code true} if the file existed.
+     */
+    public boolean deleteBinary(String name) throws IOException {
+	boolean deleted = Files.deleteIfExists(getBinaryFile(check(name)).toPath());
+	DialoguePack currentPack = binaryLoader.getPack();
+	if (currentPack != null) {
+	    currentPack.remove(name);
+	}
+	indexChanged(name, false);
+	dialogues.invalidate(name);
+	return deleted;
+    }
+
+    /**
+     * @return the metadata recorded in the {@code .dlg} file of a dialogue, or
+     *         {@code null} if it has none.
+     */
+    public DialogueMetadata readMetadata(String name) throws IOException {
+	return binaryLoader.readMetadata(check(name));
     }
 
     public boolean isLoaded(String name) {
@@ -116,6 +632,26 @@ public class DialoguesCache {
 	return (int) dialogues.size();
     }
 
+    public CacheStats stats() {
+	return dialogues.stats();
+    }
+
+    /**
+     * @return the estimated size of all cached dialogues, in bytes.
+     * @see Dialogue#estimatedSize()
+     */
+    public long weight() {
+	long weight = 0;
+	for (Dialogue dialogue : dialogues.asMap().values()) {
+	    weight += dialogue.estimatedSize();
+	}
+	return weight;
+    }
+
+    public long maximumWeight() {
+	return maximumWeight;
+    }
+
     public boolean isEmpty() {
 	return dialogues.size() == 0;
     }
@@ -1,10 +1,16 @@
 package io.github.totom3.dialogues;
 
+import com.google.common.cache.CacheStats;
+import io.github.totom3.commons.binary.DeserializingException;
 import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import org.apache.commons.lang3.StringUtils;
 import org.bukkit.Bukkit;
@@ -43,6 +49,12 @@ public class DialoguesCommandExecutor implements CommandExecutor {
 	    case "start":
 		start(sender, args);
 		break;
+	    case "cache":
+		cache(sender, args);
+		break;
+	    case "pack":
+		pack(sender, args);
+		break;
 	    case "help":
 		help(sender, args);
 		break;
@@ -58,34 +70,66 @@ public class DialoguesCommandExecutor implements CommandExecutor {
 
     private void compile(CommandSender sender, String[] args) {
 	if (args.length != 2) {
-	    sender.sendMessage(ChatColor.DARK_RED + "Syntax: " + ChatColor.RED + "/dialogues compile <dialogue>");
+	    sender.sendMessage(ChatColor.DARK_RED + "Syntax: " + ChatColor.RED + "/dialogues compile <dialogue OR -ALL>");
 	    return;
 	}
 
-	DialoguesCache cache = DialoguesCache.get();
-
 	String name = args[1];
-	Dialogue dialogue;
-	try {
-	    dialogue = cache.loadFromExcel(name);
-	} catch (ExecutionException ex) {
-	    Throwable cause = ex.getCause();
-	    if (cause instanceof FileNotFoundException) {
-		sender.sendMessage(ChatColor.DARK_RED + "Error: " + ChatColor.RED + cause.getMessage());
-		return;
-	    }
-	    sender.sendMessage(ChatColor.DARK_RED + "Error while loading dialogue: " + ChatColor.RED + cause);
-	    Main.get().getLogger().log(Level.SEVERE, "Could not load dialogue '" + name + "'", cause);
+	if (name.equalsIgnoreCase("-ALL")) {
+	    compileAll(sender);
 	    return;
 	}
 
-	try {
-	    cache.saveToBinary(dialogue);
-	    sender.sendMessage(ChatColor.GREEN + "Successfullly compiled dialogue " + ChatColor.DARK_GREEN + name + ChatColor.GREEN + "!");
-	} catch (IOException ex) {
-	    sender.sendMessage(ChatColor.DARK_RED + "Error while saving dialogue: " + ChatColor.RED + ex);
-	    Main.get().getLogger().log(Level.SEVERE, "Could not save dialogue '" + name + "'", ex);
-	}
+	DialogueCompiler.get().compile(name, true).whenCompleteAsync((dialogues, ex) -> {
+	    if (ex != null) {
+		Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+		if (cause instanceof FileNotFoundException || cause instanceof DeserializingException) {
+		    sender.sendMessage(ChatColor.DARK_RED + "Error: " + ChatColor.RED + cause.getMessage());
+		    return;
+		}
+		sender.sendMessage(ChatColor.DARK_RED + "Error while compiling dialogue: " + ChatColor.RED + cause);
+		Main.get().getLogger().log(Level.SEVERE, "Could not compile dialogue '" + name + "'", cause);
+		return;
+	    }
+
+	    if (dialogues.isEmpty()) {
+		sender.sendMessage(ChatColor.YELLOW + "Dialogue " + ChatColor.GOLD + name + ChatColor.YELLOW + " is already up to date.");
+	    } else if (dialogues.size() == 1) {
+		sender.sendMessage(ChatColor.GREEN + "Dialogue " + ChatColor.DARK_GREEN + dialogues.get(0).getName() + ChatColor.GREEN + " is compiled and loaded!");
+	    } else {
+		List<String> names = new ArrayList<>(dialogues.size());
+		for (Dialogue dialogue : dialogues) {
+		    names.add(dialogue.getName());
+		}
+		sender.sendMessage(ChatColor.GREEN + "Compiled and loaded " + dialogues.size() + " dialogues: " + ChatColor.DARK_GREEN
+			+ StringUtils.join(names, ", ") + ChatColor.GREEN + "!");
+	    }
+	}, Main.get().mainThreadExecutor());
+    }
+
+    private void compileAll(CommandSender sender) {
+	sender.sendMessage(ChatColor.YELLOW + "Compiling all dialogues...");
+	DialogueCompiler.get().compileAll().whenCompleteAsync((result, ex) -> {
+	    if (ex != null) {
+		Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+		sender.sendMessage(ChatColor.DARK_RED + "Error while listing dialogues: " + ChatColor.RED + cause);
+		Main.get().getLogger().log(Level.SEVERE, "Could not list dialogues", cause);
+		return;
+	    }
+
+	    for (Map.Entry<String, Throwable> entry : result.errors().entrySet()) {
+		Throwable cause = entry.getValue();
+		sender.sendMessage(ChatColor.DARK_RED + "Error in " + entry.getKey() + ": " + ChatColor.RED
+			+ ((cause instanceof DeserializingException || cause instanceof FileNotFoundException) ? cause.getMessage() : cause.toString()));
+		Main.get().getLogger().log(Level.SEVERE, "Could not compile dialogue '" + entry.getKey() + "'", cause);
+	    }
+
+	    int failed = result.errors().size();
+	    int total = result.compiled().size() + result.skipped().size() + failed;
+	    sender.sendMessage(((failed == 0) ? ChatColor.GREEN : ChatColor.YELLOW) + "Compiled " + result.compiled().size()
+		    + " of " + total + " dialogues in " + result.elapsedMillis() + " ms"
+		    + " (" + result.skipped().size() + " up to date, " + failed + " failed).");
+	}, Main.get().mainThreadExecutor());
     }
 
     private void load(CommandSender sender, String[] args) {
@@ -102,10 +146,9 @@ public class DialoguesCommandExecutor implements CommandExecutor {
 	    return;
 	}
 
-	if (loadDialogue(name, sender) != null) {
+	loadDialogue(name, sender, (dialogue) -> {
 	    sender.sendMessage(ChatColor.GREEN + "Successfully loaded dialogue " + ChatColor.DARK_GREEN + name + ChatColor.GREEN + "!");
-	}
-
+	});
     }
 
     private void unload(CommandSender sender, String[] args) {
@@ -141,6 +184,41 @@ public class DialoguesCommandExecutor implements CommandExecutor {
 	sender.sendMessage(builder.toString());
     }
 
+    private void cache(CommandSender sender, String[] args) {
+	DialoguesCache cache = DialoguesCache.get();
+	CacheStats stats = cache.stats();
+
+	sender.sendMessage(ChatColor.GOLD + "----=[ " + ChatColor.YELLOW + "Dialogues cache" + ChatColor.GOLD + " ]=----");
+	sender.sendMessage(ChatColor.GOLD + "Dialogues: " + ChatColor.YELLOW + cache.size()
+		+ ChatColor.GOLD + ", estimated size: " + ChatColor.YELLOW + (cache.weight() / 1024) + " / " + (cache.maximumWeight() / 1024) + " KB");
+	sender.sendMessage(ChatColor.GOLD + "Hit rate: " + ChatColor.YELLOW + String.format("%.1f%%", stats.hitRate() * 100)
+		+ ChatColor.GOLD + " (" + ChatColor.YELLOW + stats.hitCount() + ChatColor.GOLD + " hits, "
+		+ ChatColor.YELLOW + stats.missCount() + ChatColor.GOLD + " misses)");
+	sender.sendMessage(ChatColor.GOLD + "Loads: " + ChatColor.YELLOW + stats.loadCount()
+		+ ChatColor.GOLD + " (" + ChatColor.YELLOW + stats.loadExceptionCount() + ChatColor.GOLD + " failed), average time: "
+		+ ChatColor.YELLOW + String.format("%.2f ms", stats.averageLoadPenalty() / 1_000_000));
+	sender.sendMessage(ChatColor.GOLD + "Evictions: " + ChatColor.YELLOW + stats.evictionCount());
+    }
+
+    private void pack(CommandSender sender, String[] args) {
+	sender.sendMessage(ChatColor.YELLOW + "Packing all compiled dialogues...");
+	long start = System.nanoTime();
+	DialoguesCache.get().pack().whenCompleteAsync((count, ex) -> {
+	    if (ex != null) {
+		Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+		if (cause instanceof UncheckedIOException) {
+		    cause = cause.getCause();
+		}
+		sender.sendMessage(ChatColor.DARK_RED + "Error while packing dialogues: " + ChatColor.RED + cause);
+		Main.get().getLogger().log(Level.SEVERE, "Could not pack dialogues", cause);
+		return;
+	    }
+
+	    sender.sendMessage(ChatColor.GREEN + "Packed " + ChatColor.DARK_GREEN + count + ChatColor.GREEN + " dialogues in "
+		    + ((System.nanoTime() - start) / 1_000_000) + " ms!");
+	}, Main.get().mainThreadExecutor());
+    }
+
     private void start(CommandSender sender, String[] args) {
 	if (args.length < 2) {
 	    sender.sendMessage(ChatColor.DARK_RED + "Syntax: " + ChatColor.RED + "/dialogues start <dialogue> [participant1, participant2, ...]");
@@ -148,10 +226,6 @@ public class DialoguesCommandExecutor implements CommandExecutor {
 	}
 
 	String dialogueName = args[1];
-	Dialogue dialogue = loadDialogue(dialogueName, sender);
-	if (dialogue == null) {
-	    return;
-	}
 
 	Set<Player> participants = new HashSet<>();
 	if (sender instanceof Player) {
@@ -174,20 +248,31 @@ public class DialoguesCommandExecutor implements CommandExecutor {
 
 	if (participants.isEmpty()) {
 	    sender.sendMessage(ChatColor.DARK_RED + "Error: " + ChatColor.RED + "you must be a player or must specify other participants in order to use this command.");
+	    return;
 	}
 
-	DialogueSession session = dialogue.makeSession(participants);
-	session.start();
+	loadDialogue(dialogueName, sender, (dialogue) -> {
+	    // Participants may have left while the dialogue was loading
+	    participants.removeIf((player) -> !player.isOnline());
+	    if (participants.isEmpty()) {
+		return;
+	    }
+
+	    DialogueSession session = dialogue.makeSession(participants);
+	    session.start();
+	});
     }
 
     private void help(CommandSender sender, String[] args) {
 	sender.sendMessage(ChatColor.GOLD + "----=[ " + ChatColor.YELLOW + "Displaying help for /dialogues (/dlgs)" + ChatColor.GOLD + " ]=----");
 	sender.sendMessage(ChatColor.YELLOW + "- /dlgs... ");
-	sender.sendMessage(ChatColor.YELLOW + "   -> compile <dialogue>");
+	sender.sendMessage(ChatColor.YELLOW + "   -> compile <dialogue OR -ALL>");
 	sender.sendMessage(ChatColor.YELLOW + "   -> load    <dialogue>");
 	sender.sendMessage(ChatColor.YELLOW + "   -> unload  <dialogue OR -ALL>");
 	sender.sendMessage(ChatColor.YELLOW + "   -> start   <dialogue> [participant1, participant2, ...]");
 	sender.sendMessage(ChatColor.YELLOW + "   -> list ");
+	sender.sendMessage(ChatColor.YELLOW + "   -> cache ");
+	sender.sendMessage(ChatColor.YELLOW + "   -> pack ");
 	sender.sendMessage(ChatColor.YELLOW + "   -> help ");
     }
 
@@ -221,18 +306,24 @@ public class DialoguesCommandExecutor implements CommandExecutor {
     }
 
     // ------------------=[ Utility Methods ]=------------------
-    private Dialogue loadDialogue(String name, CommandSender sender) {
-	try {
-	    return DialoguesCache.get().getOrLoad(name);
-	} catch (ExecutionException ex) {
-	    Throwable cause = ex.getCause();
+    /**
+     * Loads a dialogue off the main thread, then passes it to the callback on
+     * the main thread. Errors are reported to the sender.
+     */
+    private void loadDialogue(String name, CommandSender sender, Consumer<Dialogue> callback) {
+	DialoguesCache.get().getOrLoadAsync(name).whenCompleteAsync((dialogue, ex) -> {
+	    if (ex == null) {
+		callback.accept(dialogue);
+		return;
+	    }
+
+	    Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
 	    if (cause instanceof FileNotFoundException) {
 		sender.sendMessage(ChatColor.DARK_RED + "Error: " + ChatColor.RED + cause.getMessage());
-		return null;
+		return;
 	    }
 	    sender.sendMessage(ChatColor.DARK_RED + "Error: " + ChatColor.RED + cause);
 	    Main.get().getLogger().log(Level.SEVERE, "Could not load dialogue '" + name + "'", cause);
-	    return null;
-	}
+	}, Main.get().mainThreadExecutor());
     }
 }
@@ -1,19 +1,24 @@
 package io.github.totom3.dialogues;
 
-import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import io.github.totom3.commons.binary.DeserializingException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import jxl.Cell;
+import jxl.CellType;
+import jxl.NumberCell;
 import jxl.Sheet;
 import jxl.Workbook;
 import jxl.read.biff.BiffException;
-import org.apache.commons.lang3.StringUtils;
 
 /**
  *
@@ -21,46 +26,167 @@ import org.apache.commons.lang3.StringUtils;
  */
 public class ExcelDialogueLoader {
 
-    private static final String START_VAR = "start";
-    private static final String PREFIX_VAR = "prefixes";
-    private static final String PROMPT_IDENTIFIER = "prompt";
-
-    // <editor-fold defaultstate="collapsed" desc=" Utility Methods ">
     private static String getContents(Cell[] row, int index) {
 	return (index >= row.length) ? "" : row[index].getContents();
     }
 
-    private static String malformedPrefix(String contents, int row, int column) {
-	return "Malformed prefix statement '" + contents + "' (at row " + row + " and column " + column + ")";
+    /**
+     * Reads number cells straight from their value, instead of formatting
+     * them with the cell format and parsing them back.
+     */
+    private static long getNumber(Cell[] row, int index) {
+	if (index >= row.length || row[index].getType() != CellType.NUMBER) {
+	    return SourceRow.NOT_A_NUMBER;
+	}
+
+	double value = ((NumberCell) row[index]).getValue();
+	if (value < 0 || value > Integer.MAX_VALUE || value != Math.rint(value)) {
+	    // Let the string parser report the error
+	    return SourceRow.NOT_A_NUMBER;
+	}
+	return (long) value;
+    }
+
+    public Dialogue load(String name) throws NullPointerException, FileNotFoundException, IOException, BiffException {
+	return load0(name, getFile(name));
     }
 
-    private static int parsePositive(String contents, int currentRow, String type) throws DeserializingException {
-	if (StringUtils.isBlank(contents)) {
-	    return 0;
+    /**
+     * Loads every sheet of a workbook as its own dialogue. Sheets without any
+     * {@code START} or prompt row, such as the blank sheets of a new
+     * workbook, are skipped. A workbook with a single such sheet gives a
+     * single dialogue named after the workbook; otherwise each dialogue is
+     * named {@code <workbook>.<sheet>}. Adding a second dialogue sheet thus
+     * renames the first one; the compiler deletes the outputs of the previous
+     * names. The workbook is read once, on the calling thread; when it holds
+     * several dialogues, the rows of their sheets are copied, then parsed
+     * concurrently on the given executor.
+     *
+     * @param name     the name of the workbook, as a dialogue name.
+     * @param executor the executor parsing the sheets.
+     *
+     * @return the dialogues, in the order of the sheets.
+     */
+    public List<Dialogue> loadAll(String name, Executor executor) throws NullPointerException, FileNotFoundException, IOException, BiffException {
+	File file = getFile(name);
+	List<String> sheetNames;
+	List<CopiedRow[]> sheets;
+	Workbook workbook = Workbook.getWorkbook(file);
+	try {
+	    int count = workbook.getNumberOfSheets();
+	    if (count == 0) {
+		throw new DeserializingException("This excel file doesn't contain any sheet!");
+	    }
+
+	    List<Sheet> dialogueSheets = new ArrayList<>(count);
+	    for (int i = 0; i < count; ++i) {
+		Sheet sheet = workbook.getSheet(i);
+		if (isDialogueSheet(sheet)) {
+		    dialogueSheets.add(sheet);
+		}
+	    }
+
+	    if (dialogueSheets.isEmpty()) {
+		throw new DeserializingException("This excel file doesn't contain any dialogue!");
+	    }
+
+	    // A single dialogue is parsed straight from the workbook
+	    if (dialogueSheets.size() == 1) {
+		Sheet sheet = dialogueSheets.get(0);
+		try {
+		    return Collections.singletonList(load0(name, sheet));
+		} catch (DeserializingException ex) {
+		    if (count == 1) {
+			throw ex;
+		    }
+		    throw new DeserializingException("In sheet '" + sheet.getName() + "': " + ex.getMessage(), ex);
+		}
+	    }
+
+	    // jxl is not thread-safe, and formatting the contents of a cell uses
+	    // formats shared by the whole workbook: reading the workbook stays
+	    // on this thread, every sheet is copied here, and only parsing the
+	    // copies runs concurrently once the workbook is closed
+	    sheetNames = new ArrayList<>(dialogueSheets.size());
+	    sheets = new ArrayList<>(dialogueSheets.size());
+	    for (Sheet sheet : dialogueSheets) {
+		CopiedRow[] rows = new CopiedRow[sheet.getRows()];
+		for (int rowID = 0; rowID < rows.length; ++rowID) {
+		    rows[rowID] = new CopiedRow(sheet.getRow(rowID));
+		}
+
+		sheetNames.add(sheet.getName());
+		sheets.add(rows);
+	    }
+	} finally {
+	    workbook.close();
 	}
 
+	Set<String> names = new HashSet<>(sheets.size());
+	List<CompletableFuture<Dialogue>> futures = new ArrayList<>(sheets.size());
+	for (int i = 0; i < sheets.size(); ++i) {
+	    String sheetName = sheetNames.get(i);
+	    String dialogueName = name + '.' + sanitize(sheetName);
+	    if (!names.add(dialogueName)) {
+		throw new DeserializingException("Sheet '" + sheetName + "' has the same name as another sheet once sanitized (" + dialogueName + ")");
+	    }
+
+	    CopiedRow[] rows = sheets.get(i);
+	    futures.add(CompletableFuture.supplyAsync(() -> {
+		try {
+		    return load0(dialogueName, rows);
+		} catch (DeserializingException ex) {
+		    throw new CompletionException(new DeserializingException("In sheet '" + sheetName + "': " + ex.getMessage(), ex));
+		}
+	    }, executor));
+	}
+
+	// Wait for every sheet, even if one of them failed
 	try {
-	    return Integer.parseUnsignedInt(contents);
-	} catch (NumberFormatException ex) {
-	    throw new DeserializingException("Could not parse " + type + " '" + contents + "' (at row " + currentRow + ")");
+	    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+	} catch (CompletionException ex) {
+	    Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+	    throw ex;
+	}
+
+	List<Dialogue> dialogues = new ArrayList<>(futures.size());
+	for (CompletableFuture<Dialogue> future : futures) {
+	    dialogues.add(future.join());
 	}
+	return dialogues;
     }
 
-    private static int parseID(String contents, int currentRow) throws DeserializingException {
-	if (StringUtils.isBlank(contents)) {
-	    return -1;
+    /**
+     * @return whether a sheet has a {@code START} or prompt row. Only the
+     *         identifier column is read.
+     */
+    private static boolean isDialogueSheet(Sheet sheet) {
+	CellRow row = new CellRow();
+	for (int rowID = 0; rowID < sheet.getRows(); ++rowID) {
+	    row.cells = sheet.getRow(rowID);
+	    if (DialogueRowParser.isDialogueRow(row)) {
+		return true;
+	    }
 	}
+	return false;
+    }
 
-	try {
-	    return Integer.parseUnsignedInt(contents);
-	} catch (NumberFormatException ex) {
-	    throw new DeserializingException("Could not parse prompt ID '" + contents + "' (at row " + currentRow + ")");
+    /**
+     * Turns a sheet name into a valid part of a dialogue name. Dots separate
+     * folders in dialogue names, so they are replaced along with any character
+     * that may not be valid in a file name.
+     */
+    static String sanitize(String sheetName) {
+	StringBuilder builder = new StringBuilder(sheetName.length());
+	for (int i = 0; i < sheetName.length(); ++i) {
+	    char c = sheetName.charAt(i);
+	    boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+	    builder.append(valid ? c : '_');
 	}
+	return builder.toString();
     }
 
-// </editor-fold>
-    
-    public Dialogue load(String name) throws NullPointerException, FileNotFoundException, IOException, BiffException {
+    private File getFile(String name) throws FileNotFoundException, IOException {
 	if (name == null) {
 	    throw new NullPointerException("Dialogue name cannot be null");
 	}
@@ -84,182 +210,106 @@ public class ExcelDialogueLoader {
 	    throw new FileNotFoundException("Missing excel file for dialogue '" + name + "'");
 	}
 
-	return load0(name, file);
+	return file;
     }
 
     private Dialogue load0(String name, File file) throws IOException, BiffException {
 	Workbook workbook = Workbook.getWorkbook(file);
+	try {
+	    if (workbook.getNumberOfSheets() == 0) {
+		throw new DeserializingException("This excel file doesn't contain any sheet!");
+	    }
 
-	if (workbook.getNumberOfSheets() == 0) {
-	    throw new DeserializingException("This excel file doesn't contain any sheet!");
-	}
-
-	Sheet sheet = workbook.getSheet(0);
+	    Sheet sheet = workbook.getSheet(0);
 
-	return load0(name, sheet);
+	    return load0(name, sheet);
+	} finally {
+	    workbook.close();
+	}
     }
 
     private Dialogue load0(String name, Sheet sheet) throws DeserializingException {
-	LoadingData data = new LoadingData();
+	DialogueRowParser parser = new DialogueRowParser(name);
+	CellRow row = new CellRow();
 
 	for (int rowID = 0; rowID < sheet.getRows(); ++rowID) {
-	    data.currentRow = rowID;
-	    Cell[] row = sheet.getRow(rowID);
-
-	    if (row.length < 2) {
-		continue;
-	    }
-
-	    String identifier = row[0].getContents().toLowerCase();
-	    switch (identifier) {
-		case PREFIX_VAR:
-		    parsePrefixes(row, data);
-		    break;
-		case START_VAR:
-		    parseStart(row, data);
-		    break;
-		case PROMPT_IDENTIFIER:
-		    parsePrompt(row, data);
-	    }
-	}
-
-	if (data.firstPromptID == null) {
-	    throw new DeserializingException("Missing 'START' variable");
+	    row.cells = sheet.getRow(rowID);
+	    parser.parseRow(row);
 	}
 
-	// Last step: creating Dialogue and linking prompts to it
-	Dialogue dialogue = new Dialogue(name, data.firstPromptID, data.prompts, data.prefixes);
-	for (DialoguePrompt prompt : data.prompts.values()) {
-	    prompt.init(dialogue);
-	}
-	return dialogue;
+	return parser.finish();
     }
 
-    private void parsePrefixes(Cell[] row, LoadingData data) throws DeserializingException {
-	if (data.prefixes != null) {
-	    throw new DeserializingException("Variable 'PREFIXES' has been defined twice (at row " + data.currentRow + ")");
-	}
-
-	if (row.length < 2) {
-	    throw new DeserializingException("Missing value(s) of 'PREFIXES' variable (at row " + data.currentRow + ")");
+    private Dialogue load0(String name, CopiedRow[] rows) throws DeserializingException {
+	DialogueRowParser parser = new DialogueRowParser(name);
+	for (CopiedRow row : rows) {
+	    parser.parseRow(row);
 	}
 
-	Map<Character, String> prefixes = new HashMap<>();
-	Splitter splitter = Splitter.on('=').limit(2).omitEmptyStrings();
-	for (int column = 1; column < row.length; ++column) {
-	    String contents = row[column].getContents();
-	    if (StringUtils.isEmpty(contents)) {
-		break;
-	    }
-
-	    List<String> parts = splitter.splitToList(contents);
-	    if (parts.size() != 2) {
-		throw new DeserializingException(malformedPrefix(contents, data.currentRow, column));
-	    }
-
-	    String keyStr = parts.get(0);
-	    if (keyStr.length() != 1) {
-		throw new DeserializingException(malformedPrefix(contents, data.currentRow, column));
-	    }
+	return parser.finish();
+    }
 
-	    char key = keyStr.charAt(0);
-	    String value = parts.get(1);
+    /**
+     * Exposes the cells of a row as a {@code SourceRow}. Reused across rows.
+     */
+    private static final class CellRow implements SourceRow {
 
-	    if (prefixes.put(key, value) != null) {
-		throw new DeserializingException("Prefix '" + key + "' already present (at row " + data.currentRow + " and column " + column + ")");
-	    }
-	}
+	Cell[] cells;
 
-	data.prefixes = prefixes;
-    }
-
-    private void parseStart(Cell[] row, LoadingData data) throws DeserializingException {
-	if (data.firstPromptID != null) {
-	    throw new DeserializingException("Variable 'START' has been defined twice (at row " + data.currentRow + ")");
+	@Override
+	public int length() {
+	    return cells.length;
 	}
 
-	if (row.length < 2) {
-	    throw new DeserializingException("Missing value of 'START' variable (at row " + data.currentRow + ")");
+	@Override
+	public String contents(int column) {
+	    return getContents(cells, column);
 	}
 
-	String contents = row[1].getContents();
-	try {
-	    data.firstPromptID = Integer.parseUnsignedInt(contents);
-	} catch (NumberFormatException ex) {
-	    throw new DeserializingException("Could not parse 'START' variable '" + contents + "' (at row " + data.currentRow + ")");
+	@Override
+	public long number(int column) {
+	    return getNumber(cells, column);
 	}
     }
 
-    private void parsePrompt(Cell[] row, LoadingData data) throws DeserializingException {
-	int currentRow = data.currentRow;
-	int promptID = currentRow + 1;
-
-	if (row.length < 2) {
-	    throw new DeserializingException("Prompt cannot be empty (at row " + currentRow + ")");
+    /**
+     * A row whose contents and numbers were read from its cells beforehand,
+     * so that it can be parsed without touching the workbook. Number cells
+     * holding a non-negative integer are not formatted: their contents are
+     * the plain value.
+     */
+    private static final class CopiedRow implements SourceRow {
+
+	private final String[] contents;
+	private final long[] numbers;
+
+	CopiedRow(Cell[] cells) {
+	    this.contents = new String[cells.length];
+	    this.numbers = new long[cells.length];
+	    for (int i = 0; i < cells.length; ++i) {
+		numbers[i] = getNumber(cells, i);
+		if (numbers[i] == NOT_A_NUMBER) {
+		    contents[i] = cells[i].getContents();
+		}
+	    }
 	}
 
-	String message = getContents(row, Columns.MESSAGE);
-
-	int initialDelay = parsePositive(getContents(row, Columns.INITIAL_DELAY), currentRow, "initial");
-
-	int finalDelay = parsePositive(getContents(row, Columns.FINAL_DELAY), currentRow, "final");
-
-	int nextPromptID = parseID(getContents(row, Columns.NEXT_PROMPT), currentRow);
-
-	// prompt doesn't offer any choices
-	if (row.length <= Columns.CHOICES_START) {
-	    DialoguePrompt prompt = new DialoguePrompt(message, promptID, nextPromptID, initialDelay, finalDelay);
-	    data.prompts.put(promptID, prompt);
-	    return;
+	@Override
+	public int length() {
+	    return contents.length;
 	}
 
-	// prompt offers choices
-	int timeout = parsePositive(getContents(row, Columns.TIMEOUT), currentRow, "timeout");
-
-	List<InputChoice> choices = new ArrayList<>(5);
-	int choiceID = 0;
-	for (int i = Columns.CHOICES_START; i < row.length; i += Columns.CHOICE_LENGTH) {
-	    ++choiceID;
-
-	    String displayMessage = getContents(row, i);
-	    String chatMessage = getContents(row, i + 1);
-	    String nextPromptStr = getContents(row, i + 2);
-
-	    if (StringUtils.isBlank(displayMessage) && StringUtils.isBlank(chatMessage) && StringUtils.isBlank(nextPromptStr)) {
-		break;
+	@Override
+	public String contents(int column) {
+	    if (column >= contents.length) {
+		return "";
 	    }
-
-	    int choiceNextPromptID = parseID(nextPromptStr, currentRow);
-	    choices.add(new InputChoice(choiceID, choiceNextPromptID, displayMessage, chatMessage));
+	    return (contents[column] == null) ? Long.toString(numbers[column]) : contents[column];
 	}
 
-	DialoguePrompt prompt = new DialoguePrompt(message, promptID, nextPromptID, initialDelay, finalDelay, timeout, choices);
-	data.prompts.put(promptID, prompt);
-    }
-
-    private static class LoadingData {
-
-	int currentRow;
-
-	Integer firstPromptID;
-	Map<Character, String> prefixes;
-	Map<Integer, DialoguePrompt> prompts = new HashMap<>();
-    }
-
-    private static final class Columns {
-
-	static final int MESSAGE = 1;
-
-	static final int INITIAL_DELAY = 3;
-	static final int FINAL_DELAY = 4;
-	static final int NEXT_PROMPT = 5;
-
-	static final int TIMEOUT = 7;
-	static final int CHOICES_START = 9;
-	static final int CHOICE_LENGTH = 4; // 3 data + 1 empty
-
-	private Columns() {
-	    throw new AssertionError();
+	@Override
+	public long number(int column) {
+	    return (column >= numbers.length) ? NOT_A_NUMBER : numbers[column];
 	}
     }
 }
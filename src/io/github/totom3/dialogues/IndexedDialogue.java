@@ -0,0 +1,122 @@
+package io.github.totom3.dialogues;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import io.github.totom3.commons.binary.ByteBufferDeserializationContext;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A dialogue whose prompts are decoded on first access from an indexed
+ * {@code .dlg} file, and kept in a bounded cache. Meant for very large
+ * dialogues of which sessions only visit a small part.
+ *
+ * @author Totom3
+ */
+class IndexedDialogue extends Dialogue {
+
+    /**
+     * Prompt IDs, sorted.
+     */
+    private final int[] ids;
+
+    /**
+     * Offset of each prompt in the body, in the same order as the IDs.
+     */
+    private final int[] offsets;
+
+    /**
+     * The encoded prompts. Never read from directly; each decoding works on
+     * its own duplicate.
+     */
+    private final ByteBuffer body;
+
+    private final LoadingCache<Integer, DialoguePrompt> decoded;
+    private final int cacheSize;
+
+    IndexedDialogue(String name, int firstPrompt, Map<Character, String> prefixes, int[] ids, int[] offsets, ByteBuffer body, int cacheSize) {
+	super(name, firstPrompt, prefixes);
+	this.ids = ids;
+	this.offsets = offsets;
+	this.body = body;
+	this.cacheSize = cacheSize;
+	this.decoded = CacheBuilder.newBuilder()
+		.maximumSize(cacheSize)
+		.build(new CacheLoader<Integer, DialoguePrompt>() {
+
+		    @Override
+		    public DialoguePrompt load(Integer id) throws IOException {
+			return decode(Arrays.binarySearch(IndexedDialogue.this.ids, id));
+		    }
+		});
+
+	if (Arrays.binarySearch(ids, firstPrompt) < 0) {
+	    throw new IllegalArgumentException("First prompt " + firstPrompt + " does not exist in prompts");
+	}
+    }
+
+    @Override
+    public DialoguePrompt firstPrompt() {
+	return getPrompt(firstPromptID());
+    }
+
+    @Override
+    public DialoguePrompt getPrompt(int promptID) {
+	if (Arrays.binarySearch(ids, promptID) < 0) {
+	    return null;
+	}
+
+	return decoded.getUnchecked(promptID);
+    }
+
+    /**
+     * Decodes every prompt of this dialogue, bypassing the cache.
+     *
+     * @return a new map of all prompts of this dialogue.
+     */
+    @Override
+    public Map<Integer, DialoguePrompt> prompts() {
+	ImmutableMap.Builder<Integer, DialoguePrompt> builder = ImmutableMap.builder();
+	for (int i = 0; i < ids.length; ++i) {
+	    try {
+		builder.put(ids[i], decode(i));
+	    } catch (IOException ex) {
+		throw new UncheckedIOException(ex);
+	    }
+	}
+	return builder.build();
+    }
+
+    @Override
+    public int promptCount() {
+	return ids.length;
+    }
+
+    /**
+     * Estimates the size of this dialogue once its prompt cache is full. The
+     * body is memory-mapped and does not count towards the heap.
+     */
+    @Override
+    public int estimatedSize() {
+	int count = ids.length;
+	long averagePrompt = (count == 0) ? 0 : 2L * body.capacity() / count;
+	long size = DIALOGUE_OVERHEAD + estimatedSize(messagePrefixes())
+		+ 8L * count
+		+ Math.min(count, cacheSize) * (ENTRY_OVERHEAD + averagePrompt);
+	return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    private DialoguePrompt decode(int index) throws IOException {
+	ByteBuffer buffer = body.duplicate();
+	buffer.position(offsets[index]);
+
+	DialoguePrompt prompt = BinaryDialogueAdapter.readPrompt(ids[index], new ByteBufferDeserializationContext(buffer));
+	prompt.init(this);
+	return prompt;
+    }
+}
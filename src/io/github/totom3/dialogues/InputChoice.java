@@ -13,6 +13,13 @@ public class InputChoice {
     private final String dispMessage;
     private final String chatMessage;
 
+    private MessageTemplate displayTemplate;
+    private MessageTemplate chatTemplate;
+
+    private Dialogue dialogue;
+    private boolean linked;
+    private DialoguePrompt nextPrompt;
+
     public InputChoice(int choiceID, int nextPromptID, String dispMessage, String chatMessage) {
 	this.choiceID = choiceID;
 	this.nextPromptID = nextPromptID;
@@ -20,6 +27,17 @@ public class InputChoice {
 	this.chatMessage = (StringUtils.isBlank(chatMessage) ? null : chatMessage);
     }
 
+    void init(Dialogue dialogue) {
+	this.dialogue = dialogue;
+	this.displayTemplate = MessageTemplate.compile(dispMessage);
+	this.chatTemplate = MessageTemplate.compile(chatMessage, dialogue.messagePrefixes());
+    }
+
+    void link(Dialogue dialogue) {
+	this.nextPrompt = dialogue.getPrompt(nextPromptID);
+	this.linked = true;
+    }
+
     public int choiceID() {
 	return choiceID;
     }
@@ -28,6 +46,14 @@ public class InputChoice {
 	return nextPromptID;
     }
 
+    /**
+     * @return the prompt this choice leads to, or {@code null} if it ends the
+     *         dialogue.
+     */
+    public DialoguePrompt nextPrompt() {
+	return linked ? nextPrompt : dialogue.getPrompt(nextPromptID);
+    }
+
     public String displayMessage() {
 	return dispMessage;
     }
@@ -35,4 +61,20 @@ public class InputChoice {
     public String chatMessage() {
 	return chatMessage;
     }
+
+    /**
+     * @return the compiled display message, or {@code null} if this choice
+     *         has no display message.
+     */
+    public MessageTemplate displayTemplate() {
+	return displayTemplate;
+    }
+
+    /**
+     * @return the compiled chat message, prefix included, or {@code null} if
+     *         this choice has no chat message.
+     */
+    public MessageTemplate chatTemplate() {
+	return chatTemplate;
+    }
 }
@@ -1,6 +1,8 @@
 package io.github.totom3.dialogues;
 
 import io.github.totom3.commons.binary.BinaryIO;
+import java.util.concurrent.Executor;
+import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
 
 /**
@@ -18,16 +20,46 @@ public class Main extends JavaPlugin {
 	return instance;
     }
 
+    private final Executor mainThreadExecutor = (task) -> {
+	if (Bukkit.isPrimaryThread()) {
+	    task.run();
+	} else {
+	    Bukkit.getScheduler().runTask(this, task);
+	}
+    };
+
     public Main() {
 	instance = this;
 	BinaryIO.get().registerAdapter(Dialogue.class, new BinaryDialogueAdapter());
+	BinaryIO.get().registerAdapter(SessionCheckpoint.class, new BinarySessionCheckpointAdapter());
     }
 
     @Override
     public void onEnable() {
+	saveDefaultConfig();
 	DialogueSessionsManager.get().init();
+	DialogueScheduler.get().init();
+	DialogueWatcher.get().init();
+	SessionJournal.get().init();
 	getCommand("dialogues").setExecutor(new DialoguesCommandExecutor());
+	DialoguesCache.get().preload();
+    }
+
+    @Override
+    public void onDisable() {
+	SessionJournal.get().shutdown();
+	DialogueSessionsManager.get().shutdown();
+	DialogueScheduler.get().shutdown();
+	DialogueWatcher.get().shutdown();
+	DialogueCompiler.get().shutdown();
+	DialoguesCache.get().shutdown();
+    }
+
+    /**
+     * @return an executor running tasks on the server thread; immediately if
+     *         called from it, on the next tick otherwise.
+     */
+    public Executor mainThreadExecutor() {
+	return mainThreadExecutor;
     }
-    
-    
 }
@@ -0,0 +1,193 @@
+package io.github.totom3.dialogues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.ChatColor;
+
+/**
+ * A message compiled once at load time into literal runs and variable slots.
+ * Color codes (introduced by {@code &} or by the section sign) are translated
+ * and merged into the literal runs, and the prefix, if any, is resolved. Each
+ * slot remembers the color and format active at its position, so that
+ * formatting a message is a single pass filling in the slots.
+ *
+ * @author Totom3
+ */
+public final class MessageTemplate {
+
+    /**
+     * Slot replaced by the display name of the last sender.
+     */
+    public static final char SENDER = 's';
+
+    /**
+     * Slot replaced by the display names of all participants.
+     */
+    public static final char ALL = 'a';
+
+    /**
+     * Slot replaced by the display name of a random participant.
+     */
+    public static final char RANDOM = 'r';
+
+    public static MessageTemplate compile(String message) {
+	return compile(message, null);
+    }
+
+    /**
+     * Compiles a message. If {@code prefixes} is not {@code null} and
+     * contains the first character of the message, that character is
+     * replaced by the matching prefix before compiling.
+     *
+     * @param message  the message to compile, may be {@code null}.
+     * @param prefixes the message prefixes, may be {@code null}.
+     *
+     * @return the compiled template, or {@code null} if the message was
+     *         {@code null}.
+     */
+    public static MessageTemplate compile(String message, Map<Character, String> prefixes) {
+	if (message == null) {
+	    return null;
+	}
+
+	if (prefixes != null && !message.isEmpty()) {
+	    String prefix = prefixes.get(message.charAt(0));
+	    if (prefix != null) {
+		message = prefix + message.substring(1);
+	    }
+	}
+
+	List<String> literals = new ArrayList<>(2);
+	List<Slot> slots = new ArrayList<>(1);
+
+	StringBuilder literal = new StringBuilder(message.length());
+	ChatColor lastColor = null;
+	ChatColor lastFormat = null;
+
+	int length = message.length();
+	for (int i = 0; i < length; ++i) {
+	    char c = message.charAt(i);
+	    if (i + 1 < length) {
+		char next = message.charAt(i + 1);
+		if (c == '%' && (next == SENDER || next == ALL || next == RANDOM)) {
+		    literals.add(literal.toString());
+		    literal.setLength(0);
+		    slots.add(new Slot(next, lastColor, lastFormat));
+		    ++i;
+		    continue;
+		}
+
+		if (c == '&' || c == ChatColor.COLOR_CHAR) {
+		    ChatColor cc = isColorCode(next) ? ChatColor.getByChar(next) : null;
+		    if (cc != null) {
+			if (cc.isColor() || cc == ChatColor.RESET) {
+			    lastColor = cc;
+			    lastFormat = null;
+			} else {
+			    lastFormat = cc;
+			}
+			literal.append(ChatColor.COLOR_CHAR).append(next);
+			++i;
+			continue;
+		    }
+		}
+	    }
+
+	    literal.append(c);
+	}
+	literals.add(literal.toString());
+
+	return new MessageTemplate(literals, slots);
+    }
+
+    private static boolean isColorCode(char c) {
+	return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'k' && c <= 'o') || c == 'r';
+    }
+
+    private final String[] literals;
+    private final char[] variables;
+    private final ChatColor[] colors;
+    private final ChatColor[] formats;
+    private final int literalsLength;
+
+    private MessageTemplate(List<String> literals, List<Slot> slots) {
+	int size = slots.size();
+	this.literals = literals.toArray(new String[size + 1]);
+	this.variables = new char[size];
+	this.colors = new ChatColor[size];
+	this.formats = new ChatColor[size];
+
+	for (int i = 0; i < size; ++i) {
+	    Slot slot = slots.get(i);
+	    variables[i] = slot.variable;
+	    colors[i] = slot.color;
+	    formats[i] = slot.format;
+	}
+
+	int len = 0;
+	for (String str : this.literals) {
+	    len += str.length();
+	}
+	this.literalsLength = len;
+    }
+
+    /**
+     * @return the number of variable slots in this template.
+     */
+    public int slots() {
+	return variables.length;
+    }
+
+    /**
+     * @param index the index of the literal, from {@code 0} to
+     *              {@link #slots()} inclusive.
+     *
+     * @return the literal run preceding the slot of the same index, or
+     *         following the last slot if {@code index == slots()}.
+     */
+    public String literal(int index) {
+	return literals[index];
+    }
+
+    public char variable(int slot) {
+	return variables[slot];
+    }
+
+    /**
+     * @return the last color (or {@code RESET}) before the slot, or
+     *         {@code null} if none.
+     */
+    public ChatColor color(int slot) {
+	return colors[slot];
+    }
+
+    /**
+     * @return the last format active before the slot, or {@code null} if
+     *         none.
+     */
+    public ChatColor format(int slot) {
+	return formats[slot];
+    }
+
+    /**
+     * @return the total length of the literal runs; a lower bound of the
+     *         length of the formatted message.
+     */
+    public int literalsLength() {
+	return literalsLength;
+    }
+
+    private static final class Slot {
+
+	final char variable;
+	final ChatColor color;
+	final ChatColor format;
+
+	Slot(char variable, ChatColor color, ChatColor format) {
+	    this.variable = variable;
+	    this.color = color;
+	    this.format = format;
+	}
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.totom3.dialogues;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A snapshot of the progress of a {@link DialogueSession}, from which it can
+ * be resumed after its players left, or after a restart. Taken on the main
+ * thread, then written to the {@link SessionJournal} in the background.
+ *
+ * @author Totom3
+ */
+public final class SessionCheckpoint {
+
+    private final UUID sessionID;
+    private final String dialogue;
+    private final HashCode sourceHash;
+    private final int promptID;
+    private final int action;
+    private final int remainingDelay;
+    private final boolean timeoutScheduled;
+    private final boolean acceptsInput;
+    private final List<UUID> participants;
+    private final UUID lastSender;
+    private final long time;
+
+    SessionCheckpoint(UUID sessionID, String dialogue, HashCode sourceHash, int promptID, int action, int remainingDelay,
+	    boolean timeoutScheduled, boolean acceptsInput, List<UUID> participants, UUID lastSender, long time) {
+	this.sessionID = checkNotNull(sessionID);
+	this.dialogue = checkNotNull(dialogue);
+	this.sourceHash = sourceHash;
+	this.promptID = promptID;
+	this.action = action;
+	this.remainingDelay = remainingDelay;
+	this.timeoutScheduled = timeoutScheduled;
+	this.acceptsInput = acceptsInput;
+	this.participants = ImmutableList.copyOf(participants);
+	this.lastSender = lastSender;
+	this.time = time;
+    }
+
+    public UUID sessionID() {
+	return sessionID;
+    }
+
+    /**
+     * @return the name of the dialogue of the session.
+     */
+    public String dialogue() {
+	return dialogue;
+    }
+
+    /**
+     * @return the hash of the source the dialogue was compiled from when the
+     *         checkpoint was taken, or {@code null} if unknown. Prompt IDs are
+     *         row numbers, so they only hold for that version of the source.
+     */
+    public HashCode sourceHash() {
+	return sourceHash;
+    }
+
+    public int promptID() {
+	return promptID;
+    }
+
+    int action() {
+	return action;
+    }
+
+    /**
+     * @return the number of ticks left before the session moves on, or
+     *         {@code 0} if it is not waiting for a delay.
+     */
+    public int remainingDelay() {
+	return remainingDelay;
+    }
+
+    boolean timeoutScheduled() {
+	return timeoutScheduled;
+    }
+
+    /**
+     * @return whether the session is waiting for a choice to be selected.
+     */
+    public boolean acceptsInput() {
+	return acceptsInput;
+    }
+
+    public List<UUID> participants() {
+	return participants;
+    }
+
+    /**
+     * @return the player who selected the last choice, or {@code null}.
+     */
+    public UUID lastSender() {
+	return lastSender;
+    }
+
+    /**
+     * @return the time this checkpoint was taken, in milliseconds since the
+     *         epoch.
+     */
+    public long time() {
+	return time;
+    }
+
+    @Override
+    public String toString() {
+	return "SessionCheckpoint{sessionID=" + sessionID + ", dialogue=" + dialogue + ", promptID=" + promptID
+		+ ", action=" + action + ", remainingDelay=" + remainingDelay + ", participants=" + participants + '}';
+    }
+}
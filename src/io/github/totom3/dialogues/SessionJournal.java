@@ -0,0 +1,449 @@
+package io.github.totom3.dialogues;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.github.totom3.commons.binary.DeserializationContext;
+import io.github.totom3.commons.binary.SerializationContext;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+/**
+ * Records the progress of dialogue sessions in an append-only journal, so
+ * that they can be resumed when their players join again, or after a
+ * restart. Sessions are checkpointed on the main thread, which only takes an
+ * in-memory {@link SessionCheckpoint snapshot}; encoding and writing are done
+ * by a background writer, which flushes once it has nothing left to write.
+ * <p>
+ * Each record of the journal is an {@code int} length followed by a type and
+ * either a checkpoint or the ID of an ended session. A record cut short by a
+ * crash ends the journal. Once the journal grows well past the records still
+ * needed, it is compacted into a new file holding only the latest checkpoint
+ * of every unfinished session.
+ *
+ * @author Totom3
+ */
+public class SessionJournal {
+
+    public static final String FILE_NAME = "sessions.journal";
+
+    private static final byte CHECKPOINT = 1;
+    private static final byte END = 2;
+
+    /**
+     * Records longer than this are considered corrupted.
+     */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    /**
+     * Minimum size of the journal before it is compacted, in bytes.
+     */
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+    private static final SessionJournal instance = new SessionJournal();
+
+    public static SessionJournal get() {
+	return instance;
+    }
+
+    private final File file = new File(DialoguesCache.BASE_FILE, FILE_NAME);
+
+    /**
+     * Checkpoints of sessions whose players all left, by participant. Only
+     * accessed by the main thread.
+     */
+    private final Map<UUID, SessionCheckpoint> suspended = new HashMap<>();
+
+    private ThreadPoolExecutor writer;
+    private BlockingQueue<Runnable> queue;
+    private long expireMillis;
+
+    // Only accessed by the writer thread
+    private final Map<UUID, byte[]> live = new HashMap<>();
+    private long liveBytes;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long size;
+
+    private SessionJournal() {
+    }
+
+    void init() {
+	if (writer != null) {
+	    throw new IllegalStateException("already initialized");
+	}
+
+	if (!Main.get().getConfig().getBoolean("sessions.persist", true)) {
+	    return;
+	}
+
+	expireMillis = TimeUnit.DAYS.toMillis(Math.max(0, Main.get().getConfig().getLong("sessions.expire-after-days", 7)));
+	queue = new LinkedBlockingQueue<>();
+	writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactoryBuilder()
+		.setNameFormat("Dialogues Journal")
+		.setDaemon(true)
+		.build());
+
+	Logger logger = Main.get().getLogger();
+	CompletableFuture.supplyAsync(() -> {
+	    try {
+		return recover();
+	    } catch (IOException ex) {
+		throw new UncheckedIOException(ex);
+	    }
+	}, writer).whenCompleteAsync((checkpoints, ex) -> {
+	    if (ex != null) {
+		// Checkpoints can no longer be written either, since the journal
+		// is only opened once recovered
+		logger.log(Level.SEVERE, "Could not read session journal; session persistence is disabled", ex);
+		disable();
+		return;
+	    }
+
+	    for (SessionCheckpoint checkpoint : checkpoints) {
+		for (UUID participant : checkpoint.participants()) {
+		    suspended.put(participant, checkpoint);
+		}
+	    }
+
+	    // Players may already be online after a reload
+	    for (Player player : Bukkit.getOnlinePlayers()) {
+		resume(player);
+	    }
+	    if (!checkpoints.isEmpty()) {
+		logger.info("Recovered " + checkpoints.size() + " dialogue session(s) from the journal");
+	    }
+	}, Main.get().mainThreadExecutor());
+    }
+
+    /**
+     * Checkpoints every running session, then waits for the journal to be
+     * written.
+     */
+    void shutdown() {
+	if (writer == null) {
+	    return;
+	}
+
+	for (DialogueSession session : new HashSet<>(DialogueSessionsManager.get().getSessions().values())) {
+	    checkpoint(session);
+	}
+
+	writer.execute(this::close);
+	writer.shutdown();
+	try {
+	    if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+		Main.get().getLogger().warning("Timed out while writing the session journal");
+	    }
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+	writer = null;
+	suspended.clear();
+    }
+
+    /**
+     * Stops recording sessions, without checkpointing them first.
+     */
+    private void disable() {
+	if (writer == null) {
+	    return;
+	}
+
+	writer.execute(this::close);
+	writer.shutdown();
+	writer = null;
+	suspended.clear();
+    }
+
+    public boolean isEnabled() {
+	return writer != null;
+    }
+
+    /**
+     * Records the current progress of a session. Must be called from the main
+     * thread.
+     */
+    public void checkpoint(DialogueSession session) {
+	if (writer == null) {
+	    return;
+	}
+
+	SessionCheckpoint checkpoint = session.checkpoint();
+	if (checkpoint != null) {
+	    writer.execute(() -> append(checkpoint));
+	}
+    }
+
+    /**
+     * Records the progress of a session whose last player left, so that it
+     * resumes once one of its players joins again.
+     */
+    void suspend(DialogueSession session) {
+	if (writer == null) {
+	    return;
+	}
+
+	SessionCheckpoint checkpoint = session.checkpoint();
+	if (checkpoint == null) {
+	    return;
+	}
+
+	for (UUID participant : checkpoint.participants()) {
+	    suspended.put(participant, checkpoint);
+	}
+	writer.execute(() -> append(checkpoint));
+    }
+
+    /**
+     * Records that a session ended, and must not be resumed.
+     */
+    void end(UUID sessionID) {
+	if (writer == null) {
+	    return;
+	}
+
+	writer.execute(() -> {
+	    byte[] record = live.remove(sessionID);
+	    if (record == null) {
+		return;
+	    }
+
+	    liveBytes -= 4 + record.length;
+	    try {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+		SerializationContext context = new SerializationContext(new DataOutputStream(bytes));
+		context.writeByte(END);
+		BinarySessionCheckpointAdapter.writeUUID(sessionID, context);
+		write(bytes.toByteArray());
+	    } catch (IOException ex) {
+		Main.get().getLogger().log(Level.WARNING, "Could not write to session journal", ex);
+	    }
+	});
+    }
+
+    /**
+     * Resumes the suspended session of a player, if there is one, along with
+     * its other participants that are online and not in another session.
+     * The dialogue is loaded off the main thread if needed.
+     */
+    void resume(Player player) {
+	SessionCheckpoint checkpoint = suspended.get(player.getUniqueId());
+	if (checkpoint == null) {
+	    return;
+	}
+
+	for (UUID participant : checkpoint.participants()) {
+	    suspended.remove(participant, checkpoint);
+	}
+
+	Logger logger = Main.get().getLogger();
+	DialoguesCache.get().getOrLoadAsync(checkpoint.dialogue()).whenCompleteAsync((dialogue, ex) -> {
+	    if (ex != null) {
+		logger.log(Level.WARNING, "Could not resume session of dialogue '" + checkpoint.dialogue() + "'", ex);
+		end(checkpoint.sessionID());
+		return;
+	    }
+
+	    DialogueSessionsManager manager = DialogueSessionsManager.get();
+	    List<Player> participants = new ArrayList<>(checkpoint.participants().size());
+	    for (UUID participant : checkpoint.participants()) {
+		Player online = Bukkit.getPlayer(participant);
+		if (online != null && online.isOnline() && !manager.hasSession(online)) {
+		    participants.add(online);
+		}
+	    }
+
+	    if (participants.isEmpty()) {
+		// Left again while the dialogue was loading
+		for (UUID participant : checkpoint.participants()) {
+		    suspended.putIfAbsent(participant, checkpoint);
+		}
+		return;
+	    }
+
+	    try {
+		DialogueSession.resume(dialogue, checkpoint, participants);
+	    } catch (IllegalArgumentException iae) {
+		logger.warning("Could not resume session of dialogue '" + checkpoint.dialogue() + "': " + iae.getMessage());
+		end(checkpoint.sessionID());
+	    }
+	}, Main.get().mainThreadExecutor());
+    }
+
+    /**
+     * Reads the journal, then compacts it. Ran by the writer thread.
+     *
+     * @return the latest checkpoint of every unfinished session that did not
+     *         expire.
+     */
+    private List<SessionCheckpoint> recover() throws IOException {
+	Map<UUID, SessionCheckpoint> checkpoints = new LinkedHashMap<>();
+	if (file.isFile()) {
+	    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+		while (true) {
+		    int length;
+		    byte[] record;
+		    try {
+			length = in.readInt();
+			if (length <= 0 || length > MAX_RECORD_LENGTH) {
+			    Main.get().getLogger().warning("Session journal has an invalid record; ignoring the rest of it");
+			    break;
+			}
+
+			record = new byte[length];
+			in.readFully(record);
+		    } catch (EOFException ex) {
+			// End of the journal, or a record cut short by a crash
+			break;
+		    }
+
+		    try {
+			readRecord(record, checkpoints);
+		    } catch (IOException | RuntimeException ex) {
+			Main.get().getLogger().log(Level.WARNING, "Skipping unreadable record of session journal", ex);
+		    }
+		}
+	    }
+	}
+
+	long now = System.currentTimeMillis();
+	checkpoints.values().removeIf((checkpoint) -> now - checkpoint.time() > expireMillis);
+	for (SessionCheckpoint checkpoint : checkpoints.values()) {
+	    byte[] record = encode(checkpoint);
+	    live.put(checkpoint.sessionID(), record);
+	    liveBytes += 4 + record.length;
+	}
+
+	compact();
+	return new ArrayList<>(checkpoints.values());
+    }
+
+    private void readRecord(byte[] record, Map<UUID, SessionCheckpoint> checkpoints) throws IOException {
+	DeserializationContext context = new DeserializationContext(new DataInputStream(new ByteArrayInputStream(record)));
+	byte type = context.readByte();
+	switch (type) {
+	    case CHECKPOINT:
+		SessionCheckpoint checkpoint = context.readObject(SessionCheckpoint.class);
+		checkpoints.put(checkpoint.sessionID(), checkpoint);
+		break;
+	    case END:
+		checkpoints.remove(BinarySessionCheckpointAdapter.readUUID(context));
+		break;
+	    default:
+		throw new IOException("unknown record type " + type);
+	}
+    }
+
+    private static byte[] encode(SessionCheckpoint checkpoint) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+	SerializationContext context = new SerializationContext(new DataOutputStream(bytes));
+	context.writeByte(CHECKPOINT);
+	context.writeObject(checkpoint);
+	return bytes.toByteArray();
+    }
+
+    private void append(SessionCheckpoint checkpoint) {
+	try {
+	    byte[] record = encode(checkpoint);
+	    byte[] previous = live.put(checkpoint.sessionID(), record);
+	    liveBytes += 4 + record.length - ((previous == null) ? 0 : 4 + previous.length);
+	    write(record);
+	} catch (IOException ex) {
+	    Main.get().getLogger().log(Level.WARNING, "Could not write to session journal", ex);
+	}
+    }
+
+    private void write(byte[] record) throws IOException {
+	if (out == null) {
+	    // The journal could not be opened again after a failed compaction
+	    open();
+	}
+
+	out.writeInt(record.length);
+	out.write(record);
+	size += 4 + record.length;
+
+	if (size > COMPACT_THRESHOLD && size > 4 * liveBytes) {
+	    compact();
+	} else if (queue.isEmpty()) {
+	    out.flush();
+	}
+    }
+
+    /**
+     * Writes the live records to a new journal, replacing the current one.
+     */
+    private void compact() throws IOException {
+	File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+	try (FileOutputStream tempOut = new FileOutputStream(temp);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tempOut))) {
+	    for (byte[] record : live.values()) {
+		data.writeInt(record.length);
+		data.write(record);
+	    }
+	    data.flush();
+	    tempOut.getFD().sync();
+	} catch (IOException ex) {
+	    temp.delete();
+	    throw ex;
+	}
+
+	close();
+	try {
+	    BinaryDialogueLoader.replace(temp.toPath(), file.toPath());
+	} catch (IOException ex) {
+	    // Keep appending to the current journal
+	    temp.delete();
+	    open();
+	    throw ex;
+	}
+	open();
+    }
+
+    private void open() throws IOException {
+	fileOut = new FileOutputStream(file, true);
+	out = new DataOutputStream(new BufferedOutputStream(fileOut));
+	size = file.length();
+    }
+
+    private void close() {
+	if (out == null) {
+	    return;
+	}
+
+	try {
+	    out.flush();
+	    fileOut.getFD().sync();
+	    out.close();
+	} catch (IOException ex) {
+	    Main.get().getLogger().log(Level.WARNING, "Could not close session journal", ex);
+	}
+	out = null;
+	fileOut = null;
+    }
+}
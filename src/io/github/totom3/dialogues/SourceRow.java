@@ -0,0 +1,44 @@
+package io.github.totom3.dialogues;
+
+/**
+ * A row of a dialogue source, such as an Excel sheet or a CSV file. Columns
+ * follow the layout expected by {@link DialogueRowParser}.
+ *
+ * @author Totom3
+ */
+interface SourceRow {
+
+    /**
+     * @return the number of columns in this row. Trailing empty columns may
+     *         or may not be counted.
+     */
+    int length();
+
+    /**
+     * @param column the index of the column, starting at {@code 0}.
+     *
+     * @return the contents of the column, or an empty string if the column is
+     *         empty or past the end of the row.
+     */
+    String contents(int column);
+
+    /**
+     * Returned by {@link #number(int)} when the column does not hold a typed
+     * number.
+     */
+    long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    /**
+     * Reads a column holding a non-negative integer without going through its
+     * text representation. Formats without typed values always return
+     * {@link #NOT_A_NUMBER}, and the column is then parsed from its contents.
+     *
+     * @param column the index of the column, starting at {@code 0}.
+     *
+     * @return the value of the column, or {@link #NOT_A_NUMBER} if the column
+     *         does not hold a non-negative integer typed as a number.
+     */
+    default long number(int column) {
+	return NOT_A_NUMBER;
+    }
+}